@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.app.Activity;
+import android.content.Context;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.mtp.MtpConstants;
+import android.mtp.MtpObjectInfo;
+import android.os.Bundle;
+import android.os.Debug;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.FileNotFoundException;
+
+/**
+ * Measures the time and the memory to pass child listings to clients with the SQLite cursor and
+ * with DocumentListCursor. A listing crosses Binder as CursorWindows, so the test fills windows
+ * as CursorToBulkCursorAdaptor does without the Binder transaction itself.
+ */
+@RunWith(JUnit4.class)
+public class DocumentListCursorPerfTest {
+    final static int[] ROWS = new int[] { 1000, 10000, 100000 };
+    final static int SAMPLES = 5;
+    final static int CHUNK_SIZE = 500;
+    final static int[] OPERATIONS_SUPPORTED = new int[] {
+            MtpConstants.OPERATION_GET_PARTIAL_OBJECT,
+            MtpConstants.OPERATION_SEND_OBJECT,
+            MtpConstants.OPERATION_SEND_OBJECT_INFO,
+            MtpConstants.OPERATION_DELETE_OBJECT
+    };
+    final static int CAPABILITIES = MtpDeviceRecord.getCapabilities(OPERATIONS_SUPPORTED);
+
+    @Test
+    @LargeTest
+    @SuppressWarnings("deprecation")
+    public void testTransfer() throws FileNotFoundException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final Bundle results = new Bundle();
+
+        Debug.startAllocCounting();
+        try {
+            for (final int rows : ROWS) {
+                final MtpDatabase database =
+                        new MtpDatabase(context, MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+                try {
+                    final String parentId = setUpDocuments(database, rows);
+                    final double[] sqliteTime = new double[SAMPLES];
+                    final double[] listTime = new double[SAMPLES];
+                    long sqliteBytes = 0;
+                    long listBytes = 0;
+                    int sqliteWindows = 0;
+                    int listWindows = 0;
+
+                    for (int i = 0; i < SAMPLES; i++) {
+                        Debug.resetThreadAllocSize();
+                        final long startTime = System.nanoTime();
+                        try (final Cursor cursor = database.queryChildDocuments(
+                                MtpDocumentsProvider.DEFAULT_DOCUMENT_PROJECTION, parentId)) {
+                            sqliteWindows = transferSqliteCursor(cursor);
+                        }
+                        sqliteTime[i] = (System.nanoTime() - startTime) / 1000.0 / 1000.0;
+                        sqliteBytes += Debug.getThreadAllocSize();
+                    }
+
+                    for (int i = 0; i < SAMPLES; i++) {
+                        Debug.resetThreadAllocSize();
+                        final long startTime = System.nanoTime();
+                        final DocumentListCursor cursor;
+                        try (final Cursor rowsCursor = database.queryChildDocuments(
+                                MtpDocumentsProvider.DEFAULT_DOCUMENT_PROJECTION, parentId)) {
+                            cursor = DocumentListCursor.create(rowsCursor);
+                        }
+                        try {
+                            listWindows = transferCursor(cursor);
+                        } finally {
+                            cursor.close();
+                        }
+                        listTime[i] = (System.nanoTime() - startTime) / 1000.0 / 1000.0;
+                        listBytes += Debug.getThreadAllocSize();
+                    }
+
+                    putResults(results, "sqlite" + rows, sqliteTime, sqliteBytes / SAMPLES,
+                            sqliteWindows);
+                    putResults(results, "list" + rows, listTime, listBytes / SAMPLES,
+                            listWindows);
+                } finally {
+                    database.close();
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, results);
+    }
+
+    private static String setUpDocuments(MtpDatabase database, int rows)
+            throws FileNotFoundException {
+        database.getMapper().startAddingDocuments(null);
+        database.getMapper().putDeviceDocument(new MtpDeviceRecord(
+                0, "Device", "device_key", true /* opened */, new MtpRoot[0],
+                OPERATIONS_SUPPORTED, null));
+        database.getMapper().stopAddingDocuments(null);
+        database.getMapper().startAddingDocuments("1");
+        database.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage", 1024, 1024, "")
+        });
+        database.getMapper().stopAddingDocuments("1");
+
+        final MtpObjectInfo[] chunk = new MtpObjectInfo[CHUNK_SIZE];
+        final long[] sizes = new long[CHUNK_SIZE];
+        database.getMapper().startAddingDocuments("2");
+        for (int offset = 0; offset < rows; offset += CHUNK_SIZE) {
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                chunk[i] = new MtpObjectInfo.Builder()
+                        .setObjectHandle(offset + i + 1)
+                        .setStorageId(100)
+                        .setFormat(MtpConstants.FORMAT_EXIF_JPEG)
+                        .setName("IMG_" + (offset + i) + ".jpg")
+                        .setCompressedSize(1024 * 1024)
+                        .setThumbCompressedSize(1024)
+                        .setDateModified(1422716400000L)
+                        .build();
+                sizes[i] = 1024 * 1024;
+            }
+            database.getMapper().putChildDocuments(
+                    0, "2", CAPABILITIES, chunk, sizes);
+        }
+        database.getMapper().stopAddingDocuments("2");
+        return "2";
+    }
+
+    /**
+     * Moves the SQLite cursor as the adaptor does, which sends the window of the SQLite cursor.
+     * @return Number of windows.
+     */
+    private static int transferSqliteCursor(Cursor cursor) {
+        final AbstractWindowedCursor windowedCursor = (AbstractWindowedCursor) cursor;
+        int windows = 0;
+        int position = 0;
+        while (position < cursor.getCount()) {
+            windowedCursor.moveToPosition(position);
+            final CursorWindow window = windowedCursor.getWindow();
+            position = window.getStartPosition() + window.getNumRows();
+            windows++;
+        }
+        return windows;
+    }
+
+    /**
+     * Fills new windows from the cursor as the adaptor does for cursors without a window.
+     * @return Number of windows.
+     */
+    private static int transferCursor(DocumentListCursor cursor) {
+        int windows = 0;
+        int position = 0;
+        while (position < cursor.getCount()) {
+            final CursorWindow window = new CursorWindow("DocumentListCursorPerfTest");
+            try {
+                cursor.fillWindow(position, window);
+                position = window.getStartPosition() + window.getNumRows();
+            } finally {
+                window.close();
+            }
+            windows++;
+        }
+        return windows;
+    }
+
+    private static void putResults(
+            Bundle results, String name, double[] times, long bytes, int windows) {
+        double average = 0;
+        double squaredAverage = 0;
+        for (final double time : times) {
+            average += time;
+            squaredAverage += time * time;
+        }
+        average /= times.length;
+        squaredAverage /= times.length;
+        results.putDouble(name + "Average", average);
+        results.putDouble(name + "StandardDeviation",
+                Math.sqrt(squaredAverage - average * average));
+        results.putLong(name + "AllocatedBytes", bytes);
+        results.putInt(name + "Windows", windows);
+    }
+}
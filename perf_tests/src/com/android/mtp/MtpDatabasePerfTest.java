@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.app.Activity;
+import android.content.ContentValues;
+import android.content.Context;
+import android.mtp.MtpConstants;
+import android.mtp.MtpObjectInfo;
+import android.os.Bundle;
+import android.os.Debug;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.FileNotFoundException;
+
+/**
+ * Measures converting object info into document rows, and committing the rows to the database.
+ */
+@RunWith(JUnit4.class)
+public class MtpDatabasePerfTest {
+    final static int ROWS = 10000;
+    final static int SAMPLES = 20;
+    final static int CHUNK_SIZE = DocumentLoader.NUM_LOADING_ENTRIES;
+
+    /**
+     * Operation list of a typical device, where the operations looked up for flags are near the
+     * end.
+     */
+    final static int[] OPERATIONS_SUPPORTED = new int[] {
+            MtpConstants.OPERATION_GET_DEVICE_INFO,
+            MtpConstants.OPERATION_OPEN_SESSION,
+            MtpConstants.OPERATION_CLOSE_SESSION,
+            MtpConstants.OPERATION_GET_STORAGE_IDS,
+            MtpConstants.OPERATION_GET_STORAGE_INFO,
+            MtpConstants.OPERATION_GET_NUM_OBJECTS,
+            MtpConstants.OPERATION_GET_OBJECT_HANDLES,
+            MtpConstants.OPERATION_GET_OBJECT_INFO,
+            MtpConstants.OPERATION_GET_OBJECT,
+            MtpConstants.OPERATION_GET_THUMB,
+            MtpConstants.OPERATION_GET_DEVICE_PROP_DESC,
+            MtpConstants.OPERATION_GET_DEVICE_PROP_VALUE,
+            MtpConstants.OPERATION_SET_DEVICE_PROP_VALUE,
+            MtpConstants.OPERATION_GET_PARTIAL_OBJECT,
+            MtpConstants.OPERATION_GET_OBJECT_PROPS_SUPPORTED,
+            MtpConstants.OPERATION_GET_OBJECT_PROP_DESC,
+            MtpConstants.OPERATION_GET_OBJECT_PROP_VALUE,
+            MtpConstants.OPERATION_SET_OBJECT_PROP_VALUE,
+            MtpConstants.OPERATION_GET_OBJECT_REFERENCES,
+            MtpConstants.OPERATION_SET_OBJECT_REFERENCES,
+            MtpConstants.OPERATION_SEND_OBJECT_INFO,
+            MtpConstants.OPERATION_SEND_OBJECT,
+            MtpConstants.OPERATION_DELETE_OBJECT
+    };
+    final static int CAPABILITIES = MtpDeviceRecord.getCapabilities(OPERATIONS_SUPPORTED);
+
+    /**
+     * Compares looking up the device capabilities in the operation list for every row with
+     * resolving them once.
+     */
+    @Test
+    @LargeTest
+    public void testRowMaterialization() {
+        final MtpObjectInfo[] infoList = createObjectInfoList();
+        final ContentValues values = new ContentValues();
+        final double[] scannedTime = new double[SAMPLES];
+        final double[] resolvedTime = new double[SAMPLES];
+
+        for (int i = 0; i < SAMPLES; i++) {
+            final long startTime = System.nanoTime();
+            for (final MtpObjectInfo info : infoList) {
+                MtpDatabase.getObjectDocumentValues(
+                        values, 0, "1", MtpDeviceRecord.getCapabilities(OPERATIONS_SUPPORTED),
+                        info, 1024);
+            }
+            scannedTime[i] = (System.nanoTime() - startTime) / 1000.0 / 1000.0;
+        }
+
+        for (int i = 0; i < SAMPLES; i++) {
+            final long startTime = System.nanoTime();
+            for (final MtpObjectInfo info : infoList) {
+                MtpDatabase.getObjectDocumentValues(
+                        values, 0, "1", CAPABILITIES, info, 1024);
+            }
+            resolvedTime[i] = (System.nanoTime() - startTime) / 1000.0 / 1000.0;
+        }
+
+        final Bundle results = new Bundle();
+        putRowsPerSecond(results, "scanned", scannedTime);
+        putRowsPerSecond(results, "resolved", resolvedTime);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, results);
+    }
+
+    /**
+     * Measures objects committed by Mapper#putChildDocuments per second and bytes allocated per
+     * object, both for new objects and for objects mapped to existing rows.
+     */
+    @Test
+    @LargeTest
+    @SuppressWarnings("deprecation")
+    public void testPutChildDocuments() throws FileNotFoundException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final MtpObjectInfo[] infoList = createObjectInfoList();
+        final double[] insertedTime = new double[SAMPLES];
+        final double[] updatedTime = new double[SAMPLES];
+        long insertedBytes = 0;
+        long updatedBytes = 0;
+
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < SAMPLES; i++) {
+                final MtpDatabase database =
+                        new MtpDatabase(context, MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+                try {
+                    final String storageId = setUpStorage(database);
+
+                    Debug.resetThreadAllocSize();
+                    long startTime = System.nanoTime();
+                    putChildDocuments(database, storageId, infoList);
+                    insertedTime[i] = (System.nanoTime() - startTime) / 1000.0 / 1000.0;
+                    insertedBytes += Debug.getThreadAllocSize();
+
+                    Debug.resetThreadAllocSize();
+                    startTime = System.nanoTime();
+                    putChildDocuments(database, storageId, infoList);
+                    updatedTime[i] = (System.nanoTime() - startTime) / 1000.0 / 1000.0;
+                    updatedBytes += Debug.getThreadAllocSize();
+                } finally {
+                    database.close();
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        final Bundle results = new Bundle();
+        putRowsPerSecond(results, "inserted", insertedTime);
+        putRowsPerSecond(results, "updated", updatedTime);
+        results.putDouble("insertedBytesPerObject", (double) insertedBytes / SAMPLES / ROWS);
+        results.putDouble("updatedBytesPerObject", (double) updatedBytes / SAMPLES / ROWS);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, results);
+    }
+
+    private static MtpObjectInfo[] createObjectInfoList() {
+        final MtpObjectInfo[] infoList = new MtpObjectInfo[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            infoList[i] = new MtpObjectInfo.Builder()
+                    .setObjectHandle(i + 1)
+                    .setStorageId(100)
+                    .setFormat(MtpConstants.FORMAT_EXIF_JPEG)
+                    .setName("image_" + i + ".jpg")
+                    .setCompressedSize(1024)
+                    .setThumbCompressedSize(256)
+                    .build();
+        }
+        return infoList;
+    }
+
+    private static String setUpStorage(MtpDatabase database) throws FileNotFoundException {
+        database.getMapper().startAddingDocuments(null);
+        database.getMapper().putDeviceDocument(new MtpDeviceRecord(
+                0, "Device", "device_key", true /* opened */, new MtpRoot[0],
+                OPERATIONS_SUPPORTED, null));
+        database.getMapper().stopAddingDocuments(null);
+        database.getMapper().startAddingDocuments("1");
+        database.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage", 1024, 1024, "")
+        });
+        database.getMapper().stopAddingDocuments("1");
+        return "2";
+    }
+
+    /**
+     * Puts objects in chunks as DocumentLoader does.
+     */
+    private static void putChildDocuments(
+            MtpDatabase database, String parentId, MtpObjectInfo[] infoList)
+            throws FileNotFoundException {
+        final MtpObjectInfo[] chunk = new MtpObjectInfo[CHUNK_SIZE];
+        final long[] sizes = new long[CHUNK_SIZE];
+        database.getMapper().startAddingDocuments(parentId);
+        for (int offset = 0; offset < infoList.length; offset += CHUNK_SIZE) {
+            System.arraycopy(infoList, offset, chunk, 0, CHUNK_SIZE);
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                sizes[i] = chunk[i].getCompressedSizeLong();
+            }
+            database.getMapper().putChildDocuments(
+                    0, parentId, CAPABILITIES, chunk, sizes);
+        }
+        database.getMapper().stopAddingDocuments(parentId);
+    }
+
+    private static void putRowsPerSecond(Bundle results, String name, double[] times) {
+        double average = 0;
+        double squaredAverage = 0;
+        for (final double time : times) {
+            average += time;
+            squaredAverage += time * time;
+        }
+        average /= times.length;
+        squaredAverage /= times.length;
+        results.putDouble(name + "Average", average);
+        results.putDouble(name + "StandardDeviation",
+                Math.sqrt(squaredAverage - average * average));
+        results.putDouble(name + "RowsPerSecond", ROWS / (average / 1000.0));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.app.Activity;
+import android.content.Context;
+import android.mtp.MtpConstants;
+import android.mtp.MtpObjectInfo;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Measures the throughput of copying a file to a device with the staging writer and the
+ * streaming writer. The device consumes bytes without delay, so the results show the overhead of
+ * the provider side.
+ */
+@RunWith(JUnit4.class)
+public class MtpWriterPerfTest {
+    final static int SIZE = 10 * 1024 * 1024;  // 10MB
+    final static int CHUNK_SIZE = 128 * 1024;
+    final static int SAMPLES = 20;
+    final static int[] OPERATIONS_SUPPORTED = new int[] {
+            MtpConstants.OPERATION_SEND_OBJECT,
+            MtpConstants.OPERATION_SEND_OBJECT_INFO,
+            MtpConstants.OPERATION_DELETE_OBJECT
+    };
+    final static int CAPABILITIES = MtpDeviceRecord.getCapabilities(OPERATIONS_SUPPORTED);
+
+    @Test
+    @LargeTest
+    public void testCopyThroughput() throws Exception {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final MtpDatabase database =
+                new MtpDatabase(context, MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        final MtpManager manager = new DrainingMtpManager(context);
+        final byte[] bytes = new byte[CHUNK_SIZE];
+        final double[] stagedTime = new double[SAMPLES];
+        final double[] streamedTime = new double[SAMPLES];
+
+        try {
+            final String documentId = setUpDocument(database);
+            for (int i = 0; i < SAMPLES; i++) {
+                final long startTime = System.nanoTime();
+                try (final MtpFileWriter writer = new MtpFileWriter(context, documentId)) {
+                    for (int offset = 0; offset < SIZE; offset += CHUNK_SIZE) {
+                        writer.write(offset, CHUNK_SIZE, bytes);
+                    }
+                    writer.flush(manager, database, CAPABILITIES);
+                }
+                stagedTime[i] = (System.nanoTime() - startTime) / 1000.0 / 1000.0;
+            }
+
+            for (int i = 0; i < SAMPLES; i++) {
+                final long startTime = System.nanoTime();
+                try (final MtpStreamWriter writer = new MtpStreamWriter(
+                        context, manager, database.createIdentifier(documentId), SIZE)) {
+                    for (int offset = 0; offset < SIZE; offset += CHUNK_SIZE) {
+                        writer.write(offset, CHUNK_SIZE, bytes);
+                    }
+                    writer.finish(database, CAPABILITIES);
+                }
+                streamedTime[i] = (System.nanoTime() - startTime) / 1000.0 / 1000.0;
+            }
+        } finally {
+            database.close();
+        }
+
+        final Bundle results = new Bundle();
+        putThroughput(results, "staged", stagedTime);
+        putThroughput(results, "streamed", streamedTime);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, results);
+    }
+
+    private static String setUpDocument(MtpDatabase database) throws IOException {
+        database.getMapper().startAddingDocuments(null);
+        database.getMapper().putDeviceDocument(new MtpDeviceRecord(
+                0, "Device", "device_key", true /* opened */, new MtpRoot[0],
+                OPERATIONS_SUPPORTED, null));
+        database.getMapper().stopAddingDocuments(null);
+        database.getMapper().startAddingDocuments("1");
+        database.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage", 1024, 1024, "")
+        });
+        database.getMapper().stopAddingDocuments("1");
+        return database.putNewDocument(
+                0, "2", CAPABILITIES, createObjectInfo(1, 0), 0);
+    }
+
+    private static MtpObjectInfo createObjectInfo(int objectHandle, long size) {
+        return new MtpObjectInfo.Builder()
+                .setObjectHandle(objectHandle)
+                .setStorageId(100)
+                .setParent(0xffffffff)
+                .setFormat(MtpConstants.FORMAT_UNDEFINED)
+                .setName("test.bin")
+                .setCompressedSize(size)
+                .build();
+    }
+
+    private static void putThroughput(Bundle results, String name, double[] times) {
+        double average = 0;
+        double squaredAverage = 0;
+        for (final double time : times) {
+            average += time;
+            squaredAverage += time * time;
+        }
+        average /= times.length;
+        squaredAverage /= times.length;
+        results.putDouble(name + "Average", average);
+        results.putDouble(name + "StandardDeviation",
+                Math.sqrt(squaredAverage - average * average));
+        results.putDouble(name + "MegabytesPerSecond",
+                SIZE / 1024.0 / 1024.0 / (average / 1000.0));
+    }
+
+    /**
+     * MtpManager that reads uploaded bytes as fast as possible.
+     */
+    private static class DrainingMtpManager extends MtpManager {
+        private final byte[] mBuffer = new byte[CHUNK_SIZE];
+        private int mNextHandle = 2;
+        private long mLastSize;
+
+        DrainingMtpManager(Context context) {
+            super(context);
+        }
+
+        @Override
+        MtpObjectInfo getObjectInfo(int deviceId, int objectHandle) {
+            return createObjectInfo(objectHandle, mLastSize);
+        }
+
+        @Override
+        void deleteDocument(int deviceId, int objectHandle) {}
+
+        @Override
+        int createDocument(int deviceId, MtpObjectInfo objectInfo, ParcelFileDescriptor source)
+                throws IOException {
+            // Like MtpDevice#sendObject, the source is not closed here.
+            final FileInputStream stream = new FileInputStream(source.getFileDescriptor());
+            long remaining = objectInfo.getCompressedSizeLong();
+            while (remaining > 0) {
+                final int result =
+                        stream.read(mBuffer, 0, (int) Math.min(mBuffer.length, remaining));
+                if (result < 0) {
+                    throw new IOException("Unexpected end of the source.");
+                }
+                remaining -= result;
+            }
+            mLastSize = objectInfo.getCompressedSizeLong();
+            return mNextHandle++;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Cache for byte ranges of MTP objects which is shared by all proxy file descriptors.
+ * Objects are split into fixed size blocks keyed by (device ID, object handle, block index). The
+ * cache keeps the blocks in memory up to the memory budget, and moves blocks evicted from memory to
+ * the spill directory if it is specified. Blocks are evicted in least recently used order across
+ * all objects.
+ *
+ * The client obtains {@link Entry} for an object once, reads the object through the entry, and
+ * releases the entry when it stops reading. Reads served from memory do not allocate objects. An
+ * entry is dropped when it is released by all clients and has no cached blocks. Blocks are written
+ * to the spill directory by the reading thread after it leaves the lock of the cache.
+ *
+ * Object handles are valid only in the current MTP session, so the client needs to invalidate
+ * blocks when the object is modified or deleted, and when the device is closed.
+ */
+class BlockCache {
+    static final int BLOCK_SIZE = 128 * 1024;
+    static final long DEFAULT_MEMORY_BUDGET = 8 * 1024 * 1024;
+    static final long DEFAULT_DISK_BUDGET = 64 * 1024 * 1024;
+
+    /**
+     * Reads a block from the device.
+     */
+    interface BlockReader {
+        /**
+         * Reads bytes of the object from the device.
+         * @param offset Offset of the block in the object.
+         * @param size Number of bytes to read.
+         * @param buffer Buffer that receives bytes.
+         * @return Number of read bytes. It is less than size at the end of the object, or if the
+         *     device returns fewer bytes than requested.
+         */
+        int readBlock(long offset, int size, byte[] buffer) throws IOException;
+
+        /**
+         * Returns the size of the object, or -1 if it is unknown. It is called only when the
+         * device returns a block shorter than requested.
+         */
+        long getObjectSize() throws IOException;
+    }
+
+    /**
+     * Cached blocks of a single object.
+     */
+    static class Entry {
+        final int mDeviceId;
+        final int mObjectHandle;
+        @GuardedBy("BlockCache.this")
+        final SparseArray<Block> mMemoryBlocks = new SparseArray<>();
+        @GuardedBy("BlockCache.this")
+        final SparseArray<Block> mDiskBlocks = new SparseArray<>();
+        @GuardedBy("BlockCache.this")
+        int mReferenceCount;
+        /**
+         * Number of blocks of the entry that are being written to the spill directory.
+         */
+        @GuardedBy("BlockCache.this")
+        int mPendingSpillCount;
+        volatile boolean mInvalidated;
+
+        Entry(int deviceId, int objectHandle) {
+            mDeviceId = deviceId;
+            mObjectHandle = objectHandle;
+        }
+
+        /**
+         * Whether the object is modified or deleted, or the device is closed after the entry is
+         * obtained.
+         */
+        boolean isInvalidated() {
+            return mInvalidated;
+        }
+    }
+
+    /**
+     * Block in memory or in the spill directory, linked in the LRU list of its tier.
+     */
+    private static class Block {
+        final Entry mEntry;
+        final int mIndex;
+        final int mLength;
+        /**
+         * Bytes of the block. Null for blocks in the spill directory.
+         */
+        final @Nullable byte[] mBytes;
+        Block mPrevious;
+        Block mNext;
+
+        Block(Entry entry, int index, int length, @Nullable byte[] bytes) {
+            mEntry = entry;
+            mIndex = index;
+            mLength = length;
+            mBytes = bytes;
+        }
+    }
+
+    /**
+     * Doubly linked list of blocks from the least recently used one.
+     */
+    private static class LruList {
+        private final Block mHead = new Block(null, -1, 0, null);
+
+        LruList() {
+            mHead.mPrevious = mHead;
+            mHead.mNext = mHead;
+        }
+
+        void add(Block block) {
+            block.mPrevious = mHead.mPrevious;
+            block.mNext = mHead;
+            mHead.mPrevious.mNext = block;
+            mHead.mPrevious = block;
+        }
+
+        void remove(Block block) {
+            block.mPrevious.mNext = block.mNext;
+            block.mNext.mPrevious = block.mPrevious;
+            block.mPrevious = null;
+            block.mNext = null;
+        }
+
+        void touch(Block block) {
+            remove(block);
+            add(block);
+        }
+
+        @Nullable Block getEldest() {
+            return mHead.mNext != mHead ? mHead.mNext : null;
+        }
+    }
+
+    private final long mMemoryBudget;
+    private final long mDiskBudget;
+    private final @Nullable File mSpillDirectory;
+
+    @GuardedBy("this")
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<>();
+    @GuardedBy("this")
+    private final LruList mMemoryLru = new LruList();
+    @GuardedBy("this")
+    private final LruList mDiskLru = new LruList();
+    /**
+     * Blocks evicted from memory that are not written to the spill directory yet.
+     */
+    @GuardedBy("this")
+    private final ArrayList<Block> mPendingSpills = new ArrayList<>();
+    @GuardedBy("this")
+    private long mMemoryBytes;
+    @GuardedBy("this")
+    private long mDiskBytes;
+    @GuardedBy("this")
+    private long mHitCount;
+    @GuardedBy("this")
+    private long mMissCount;
+    @GuardedBy("this")
+    private long mSavedBytes;
+
+    BlockCache(@Nullable File spillDirectory) {
+        this(DEFAULT_MEMORY_BUDGET, DEFAULT_DISK_BUDGET, spillDirectory);
+    }
+
+    @VisibleForTesting
+    BlockCache(long memoryBudget, long diskBudget, @Nullable File spillDirectory) {
+        mMemoryBudget = memoryBudget;
+        mDiskBudget = diskBudget;
+        mSpillDirectory = spillDirectory;
+        if (mSpillDirectory != null) {
+            // Blocks spilled by the previous process are not valid anymore because object handles
+            // are valid only in a MTP session.
+            FileUtils.deleteContents(mSpillDirectory);
+            mSpillDirectory.mkdirs();
+        }
+    }
+
+    /**
+     * Obtains the entry for the object. The client needs to call {@link #releaseEntry} when it
+     * stops reading the object.
+     * @param deviceId Device ID.
+     * @param objectHandle Object handle.
+     * @return Entry that is shared by all readers of the object.
+     */
+    synchronized Entry getEntry(int deviceId, int objectHandle) {
+        final long key = getKey(deviceId, objectHandle);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(deviceId, objectHandle);
+            mEntries.put(key, entry);
+        }
+        entry.mReferenceCount++;
+        return entry;
+    }
+
+    /**
+     * Releases the entry obtained by {@link #getEntry}. The cached blocks of the entry are kept
+     * until they are evicted.
+     */
+    synchronized void releaseEntry(Entry entry) {
+        entry.mReferenceCount--;
+        dropEntryIfUnused(entry);
+    }
+
+    /**
+     * Reads bytes of the object through the cache.
+     * @param entry Entry of the object.
+     * @param offset Offset in the object.
+     * @param size Number of bytes to read.
+     * @param data Buffer that receives bytes.
+     * @param reader Reader used to fetch blocks that are not found in the cache.
+     * @return Number of read bytes.
+     * @throws IOException
+     */
+    int read(Entry entry, long offset, int size, byte[] data, BlockReader reader)
+            throws IOException {
+        int copied = 0;
+        try {
+            while (copied < size) {
+                final long position = offset + copied;
+                final int index = (int) (position / BLOCK_SIZE);
+                final int blockOffset = (int) (position % BLOCK_SIZE);
+                byte[] block = getBlock(entry, index, blockOffset, size - copied);
+                if (block == null) {
+                    final long blockPosition = (long) index * BLOCK_SIZE;
+                    final byte[] buffer = new byte[BLOCK_SIZE];
+                    final int length = reader.readBlock(blockPosition, BLOCK_SIZE, buffer);
+                    block = length == BLOCK_SIZE ?
+                            buffer : Arrays.copyOf(buffer, Math.max(length, 0));
+                    // A short block is cached only if it ends at the end of the object, since the
+                    // cached short block is taken as the end of the object.
+                    if (block.length == BLOCK_SIZE ||
+                            blockPosition + block.length == reader.getObjectSize()) {
+                        putBlock(entry, index, block);
+                    }
+                }
+                final int length = Math.min(block.length - blockOffset, size - copied);
+                if (length <= 0) {
+                    break;
+                }
+                System.arraycopy(block, blockOffset, data, copied, length);
+                copied += length;
+                if (block.length < BLOCK_SIZE) {
+                    // Reached the end of the object, or the device returned a short block.
+                    break;
+                }
+            }
+        } finally {
+            spillPendingBlocks();
+        }
+        return copied;
+    }
+
+    /**
+     * Removes the cached blocks of the object.
+     */
+    synchronized void invalidateObject(int deviceId, int objectHandle) {
+        final int index = mEntries.indexOfKey(getKey(deviceId, objectHandle));
+        if (index >= 0) {
+            removeEntry(mEntries.valueAt(index));
+            mEntries.removeAt(index);
+        }
+    }
+
+    /**
+     * Removes the cached blocks of all objects in the device.
+     */
+    synchronized void invalidateDevice(int deviceId) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.valueAt(i).mDeviceId == deviceId) {
+                removeEntry(mEntries.valueAt(i));
+                mEntries.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached blocks.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < mEntries.size(); i++) {
+            removeEntry(mEntries.valueAt(i));
+        }
+        mEntries.clear();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        final long total = mHitCount + mMissCount;
+        writer.println("BlockCache:");
+        writer.println("  objects: " + mEntries.size());
+        writer.println("  memory: " + mMemoryBytes + " bytes");
+        writer.println("  disk: " + mDiskBytes + " bytes");
+        writer.println("  hits: " + mHitCount + ", misses: " + mMissCount + ", hit ratio: " +
+                (total != 0 ? (double) mHitCount / total : 0));
+        writer.println("  bytes saved: " + mSavedBytes);
+    }
+
+    private synchronized @Nullable byte[] getBlock(
+            Entry entry, int index, int blockOffset, int requestedBytes) {
+        final Block memoryBlock = entry.mMemoryBlocks.get(index);
+        byte[] block = null;
+        if (memoryBlock != null) {
+            mMemoryLru.touch(memoryBlock);
+            block = memoryBlock.mBytes;
+        } else if (entry.mDiskBlocks.get(index) != null) {
+            block = readSpillFile(entry.mDiskBlocks.get(index));
+            if (block != null) {
+                // Promote the block to the memory tier.
+                putMemoryBlock(entry, index, block);
+            }
+        }
+        if (block == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        mSavedBytes += Math.max(0, Math.min(block.length - blockOffset, requestedBytes));
+        return block;
+    }
+
+    private synchronized void putBlock(Entry entry, int index, byte[] block) {
+        if (entry.mInvalidated) {
+            // The object was modified while we were fetching the block.
+            return;
+        }
+        putMemoryBlock(entry, index, block);
+    }
+
+    @GuardedBy("this")
+    private void putMemoryBlock(Entry entry, int index, byte[] bytes) {
+        final Block previous = entry.mMemoryBlocks.get(index);
+        if (previous != null) {
+            removeMemoryBlock(previous);
+        }
+        final Block block = new Block(entry, index, bytes.length, bytes);
+        entry.mMemoryBlocks.put(index, block);
+        mMemoryLru.add(block);
+        mMemoryBytes += bytes.length;
+        while (mMemoryBytes > mMemoryBudget) {
+            final Block eldest = mMemoryLru.getEldest();
+            if (eldest == null || eldest == block) {
+                break;
+            }
+            removeMemoryBlock(eldest);
+            if (mSpillDirectory != null && eldest.mEntry.mDiskBlocks.get(eldest.mIndex) == null) {
+                // The block is written by spillPendingBlocks after the caller leaves the lock.
+                eldest.mEntry.mPendingSpillCount++;
+                mPendingSpills.add(eldest);
+            } else {
+                dropEntryIfUnused(eldest.mEntry);
+            }
+        }
+    }
+
+    /**
+     * Writes blocks evicted from memory to the spill directory. The file is written without the
+     * lock of the cache so that other readers are not blocked by the disk, and then it is moved to
+     * the spill file of the block under the lock.
+     */
+    private void spillPendingBlocks() {
+        while (true) {
+            final Block memoryBlock;
+            synchronized (this) {
+                if (mPendingSpills.isEmpty()) {
+                    return;
+                }
+                memoryBlock = mPendingSpills.remove(mPendingSpills.size() - 1);
+            }
+            File file = null;
+            try {
+                file = File.createTempFile("block", null, mSpillDirectory);
+                try (final FileOutputStream stream = new FileOutputStream(file)) {
+                    stream.write(memoryBlock.mBytes);
+                }
+            } catch (IOException error) {
+                Log.w(MtpDocumentsProvider.TAG, "Failed to spill a block.", error);
+                if (file != null) {
+                    file.delete();
+                    file = null;
+                }
+            }
+            putDiskBlock(memoryBlock, file);
+        }
+    }
+
+    /**
+     * Adds the block written to the file by {@link #spillPendingBlocks} to the disk tier.
+     * @param file File that contains bytes of the block, or null if writing the file failed.
+     */
+    private synchronized void putDiskBlock(Block memoryBlock, @Nullable File file) {
+        final Entry entry = memoryBlock.mEntry;
+        final int index = memoryBlock.mIndex;
+        entry.mPendingSpillCount--;
+        if (file != null) {
+            if (entry.mInvalidated || entry.mDiskBlocks.get(index) != null ||
+                    !file.renameTo(getSpillFile(entry, index))) {
+                // The object was modified, or the block was spilled by another reader.
+                file.delete();
+            } else {
+                final Block block = new Block(entry, index, memoryBlock.mLength, null);
+                entry.mDiskBlocks.put(index, block);
+                mDiskLru.add(block);
+                mDiskBytes += block.mLength;
+                while (mDiskBytes > mDiskBudget) {
+                    final Block eldest = mDiskLru.getEldest();
+                    if (eldest == null) {
+                        break;
+                    }
+                    removeDiskBlock(eldest);
+                    if (eldest.mEntry != entry) {
+                        dropEntryIfUnused(eldest.mEntry);
+                    }
+                }
+            }
+        }
+        dropEntryIfUnused(entry);
+    }
+
+    @GuardedBy("this")
+    private @Nullable byte[] readSpillFile(Block diskBlock) {
+        final byte[] block = new byte[diskBlock.mLength];
+        try (final FileInputStream stream =
+                new FileInputStream(getSpillFile(diskBlock.mEntry, diskBlock.mIndex))) {
+            int read = 0;
+            while (read < block.length) {
+                final int result = stream.read(block, read, block.length - read);
+                if (result < 0) {
+                    throw new IOException("Unexpected end of a spilled block.");
+                }
+                read += result;
+            }
+            mDiskLru.touch(diskBlock);
+            return block;
+        } catch (IOException error) {
+            Log.w(MtpDocumentsProvider.TAG, "Failed to read a spilled block.", error);
+            removeDiskBlock(diskBlock);
+            return null;
+        }
+    }
+
+    @GuardedBy("this")
+    private void removeMemoryBlock(Block block) {
+        mMemoryBytes -= block.mLength;
+        block.mEntry.mMemoryBlocks.delete(block.mIndex);
+        mMemoryLru.remove(block);
+    }
+
+    @GuardedBy("this")
+    private void removeDiskBlock(Block block) {
+        mDiskBytes -= block.mLength;
+        block.mEntry.mDiskBlocks.delete(block.mIndex);
+        mDiskLru.remove(block);
+        getSpillFile(block.mEntry, block.mIndex).delete();
+    }
+
+    /**
+     * Drops the entry from the map if no client holds it and it has no cached or pending blocks.
+     */
+    @GuardedBy("this")
+    private void dropEntryIfUnused(Entry entry) {
+        if (entry.mReferenceCount > 0 || entry.mPendingSpillCount > 0 ||
+                entry.mMemoryBlocks.size() > 0 || entry.mDiskBlocks.size() > 0) {
+            return;
+        }
+        final long key = getKey(entry.mDeviceId, entry.mObjectHandle);
+        if (mEntries.get(key) == entry) {
+            mEntries.remove(key);
+        }
+    }
+
+    @GuardedBy("this")
+    private void removeEntry(Entry entry) {
+        entry.mInvalidated = true;
+        while (entry.mMemoryBlocks.size() > 0) {
+            removeMemoryBlock(entry.mMemoryBlocks.valueAt(0));
+        }
+        while (entry.mDiskBlocks.size() > 0) {
+            removeDiskBlock(entry.mDiskBlocks.valueAt(0));
+        }
+    }
+
+    private File getSpillFile(Entry entry, int index) {
+        return new File(mSpillDirectory,
+                entry.mDeviceId + "_" + entry.mObjectHandle + "_" + index);
+    }
+
+    private static long getKey(int deviceId, int objectHandle) {
+        return ((long) deviceId << 32) | (objectHandle & 0xffffffffL);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.provider.DocumentsContract.Document;
+import android.util.ArrayMap;
+
+/**
+ * Read-only cursor that holds a document listing in arrays per column.
+ * Integer columns are stored as primitive longs and MIME types are shared between rows. Unlike a
+ * SQLite cursor, which runs the query again for every window after the first one, the cursor
+ * fills windows for clients directly from the arrays, and numbers are put to windows as integers
+ * so that more rows fit in a window.
+ */
+class DocumentListCursor extends AbstractCursor {
+    private final String[] mColumnNames;
+    private final int mCount;
+
+    /**
+     * Values of integer columns. Null for string columns and for columns that have only nulls.
+     */
+    private final long[][] mLongs;
+
+    /**
+     * Null flags of integer columns. Null if the column does not have null.
+     */
+    private final boolean[][] mNulls;
+
+    /**
+     * Values of string columns. Null for integer columns.
+     */
+    private final String[][] mStrings;
+
+    private DocumentListCursor(
+            String[] columnNames, int count, long[][] longs, boolean[][] nulls,
+            String[][] strings) {
+        mColumnNames = columnNames;
+        mCount = count;
+        mLongs = longs;
+        mNulls = nulls;
+        mStrings = strings;
+    }
+
+    /**
+     * Reads all rows of the source cursor. The source cursor is not closed.
+     */
+    static DocumentListCursor create(Cursor source) {
+        final String[] columnNames = source.getColumnNames();
+        final int count = source.getCount();
+        final long[][] longs = new long[columnNames.length][];
+        final boolean[][] nulls = new boolean[columnNames.length][];
+        final String[][] strings = new String[columnNames.length][];
+        final int mimeTypeIndex = source.getColumnIndex(Document.COLUMN_MIME_TYPE);
+        final ArrayMap<String, String> mimeTypes = new ArrayMap<>();
+
+        source.moveToPosition(-1);
+        for (int row = 0; row < count && source.moveToNext(); row++) {
+            for (int column = 0; column < columnNames.length; column++) {
+                final int type = source.getType(column);
+                if (type == FIELD_TYPE_NULL) {
+                    // String columns keep null without flags.
+                    if (strings[column] == null) {
+                        if (nulls[column] == null) {
+                            nulls[column] = new boolean[count];
+                        }
+                        nulls[column][row] = true;
+                    }
+                } else if (type == FIELD_TYPE_INTEGER && strings[column] == null) {
+                    if (longs[column] == null) {
+                        longs[column] = new long[count];
+                    }
+                    longs[column][row] = source.getLong(column);
+                } else {
+                    if (strings[column] == null) {
+                        // Values read so far are converted as SQLite does for getString.
+                        strings[column] = toStrings(longs[column], nulls[column], row, count);
+                        longs[column] = null;
+                        nulls[column] = null;
+                    }
+                    final String value = source.getString(column);
+                    strings[column][row] =
+                            column == mimeTypeIndex ? intern(mimeTypes, value) : value;
+                }
+            }
+        }
+        return new DocumentListCursor(columnNames, count, longs, nulls, strings);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        checkPosition();
+        if (isNull(column)) {
+            return FIELD_TYPE_NULL;
+        }
+        return mStrings[column] != null ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        checkPosition();
+        if (mStrings[column] != null) {
+            return mStrings[column][mPos] == null;
+        }
+        return mLongs[column] == null || (mNulls[column] != null && mNulls[column][mPos]);
+    }
+
+    @Override
+    public String getString(int column) {
+        checkPosition();
+        if (mStrings[column] != null) {
+            return mStrings[column][mPos];
+        }
+        return isNull(column) ? null : Long.toString(mLongs[column][mPos]);
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        if (mStrings[column] != null) {
+            final String value = mStrings[column][mPos];
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException exception) {
+                return 0;
+            }
+        }
+        return isNull(column) ? 0 : mLongs[column][mPos];
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        checkPosition();
+        if (mStrings[column] != null) {
+            final String value = mStrings[column][mPos];
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException exception) {
+                return 0;
+            }
+        }
+        return getLong(column);
+    }
+
+    private static String[] toStrings(
+            long[] longs, boolean[] nulls, int rowCount, int count) {
+        final String[] strings = new String[count];
+        if (longs == null) {
+            return strings;
+        }
+        for (int i = 0; i < rowCount; i++) {
+            if (nulls == null || !nulls[i]) {
+                strings[i] = Long.toString(longs[i]);
+            }
+        }
+        return strings;
+    }
+
+    private static String intern(ArrayMap<String, String> pool, String value) {
+        if (value == null) {
+            return null;
+        }
+        final String pooled = pool.get(value);
+        if (pooled != null) {
+            return pooled;
+        }
+        pool.put(value, value);
+        return value;
+    }
+}
@@ -20,7 +20,6 @@ import android.annotation.Nullable;
 import android.annotation.WorkerThread;
 import android.content.ContentResolver;
 import android.database.Cursor;
-import android.mtp.MtpConstants;
 import android.mtp.MtpObjectInfo;
 import android.net.Uri;
 import android.os.Bundle;
@@ -35,6 +34,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.Objects;
 
 /**
  * Loader for MTP document.
@@ -51,15 +51,31 @@ class DocumentLoader implements AutoCloseable {
     private final MtpManager mMtpManager;
     private final ContentResolver mResolver;
     private final MtpDatabase mDatabase;
+    private final @Nullable ThumbnailCache mThumbnailCache;
+    private final ObjectSizeResolver mSizeResolver;
     private final TaskList mTaskList = new TaskList();
     private Thread mBackgroundThread;
 
     DocumentLoader(MtpDeviceRecord device, MtpManager mtpManager, ContentResolver resolver,
                    MtpDatabase database) {
+        this(device, mtpManager, resolver, database, null);
+    }
+
+    /**
+     * @param thumbnailCache Cache to prefetch thumbnails of queried child documents.
+     */
+    DocumentLoader(MtpDeviceRecord device, MtpManager mtpManager, ContentResolver resolver,
+                   MtpDatabase database, @Nullable ThumbnailCache thumbnailCache) {
         mDevice = device;
         mMtpManager = mtpManager;
         mResolver = resolver;
         mDatabase = database;
+        mThumbnailCache = thumbnailCache;
+        mSizeResolver = new ObjectSizeResolver(mtpManager, database, resolver, device);
+    }
+
+    ObjectSizeResolver getSizeResolver() {
+        return mSizeResolver;
     }
 
     /**
@@ -69,9 +85,33 @@ class DocumentLoader implements AutoCloseable {
      */
     synchronized Cursor queryChildDocuments(String[] columnNames, Identifier parent)
             throws IOException {
+        return queryChildDocuments(columnNames, parent, null);
+    }
+
+    /**
+     * Queries the child documents of given parent that pass the filter.
+     * The filter is passed to the device so that it returns only matching objects, unless the
+     * children have not been mapped since the device was connected again. In that case, all
+     * children are loaded to keep their document IDs.
+     * @param filter Filter of documents, or null to query all documents.
+     */
+    synchronized Cursor queryChildDocuments(
+            String[] columnNames, Identifier parent, @Nullable FormatFilter filter)
+            throws IOException {
         assert parent.mDeviceId == mDevice.deviceId;
 
-        LoaderTask task = mTaskList.findTask(parent);
+        final FormatFilter listingFilter =
+                filter != null && !mDatabase.hasDisconnectedChildren(parent.mDocumentId) ?
+                filter : null;
+        LoaderTask task = mTaskList.findTask(parent, listingFilter);
+        if (task == null && listingFilter != null) {
+            // A task that has loaded all children can serve filtered queries as well.
+            final LoaderTask unfilteredTask = mTaskList.findTask(parent, null);
+            if (unfilteredTask != null &&
+                    unfilteredTask.getState() == LoaderTask.STATE_COMPLETED) {
+                task = unfilteredTask;
+            }
+        }
         if (task == null) {
             if (parent.mDocumentId == null) {
                 throw new FileNotFoundException("Parent not found.");
@@ -82,7 +122,9 @@ class DocumentLoader implements AutoCloseable {
             // 3. startAddingChildDocuemnts.
             // 4. stopAddingChildDocuments - It removes the new document added at the step 2,
             //     because it is not updated between start/stopAddingChildDocuments.
-            task = new LoaderTask(mMtpManager, mDatabase, mDevice.operationsSupported, parent);
+            task = new LoaderTask(
+                    mMtpManager, mDatabase, mDevice, parent, listingFilter, mSizeResolver,
+                    mThumbnailCache);
             task.loadObjectHandles();
             task.loadObjectInfoList(NUM_INITIAL_ENTRIES);
         } else {
@@ -94,7 +136,7 @@ class DocumentLoader implements AutoCloseable {
         if (task.getState() == LoaderTask.STATE_LOADING) {
             resume();
         }
-        return task.createCursor(mResolver, columnNames);
+        return task.createCursor(mResolver, columnNames, filter);
     }
 
     /**
@@ -125,13 +167,14 @@ class DocumentLoader implements AutoCloseable {
 
         final Identifier identifier = mDatabase.getUnmappedDocumentsParent(mDevice.deviceId);
         if (identifier != null) {
-            final LoaderTask existingTask = mTaskList.findTask(identifier);
+            final LoaderTask existingTask = mTaskList.findTask(identifier, null);
             if (existingTask != null) {
                 Preconditions.checkState(existingTask.getState() != LoaderTask.STATE_LOADING);
                 mTaskList.remove(existingTask);
             }
+            // Thumbnails are not prefetched for documents that nobody is browsing.
             final LoaderTask newTask = new LoaderTask(
-                    mMtpManager, mDatabase, mDevice.operationsSupported, identifier);
+                    mMtpManager, mDatabase, mDevice, identifier, null, mSizeResolver, null);
             newTask.loadObjectHandles();
             mTaskList.addFirst(newTask);
             return newTask;
@@ -155,6 +198,7 @@ class DocumentLoader implements AutoCloseable {
             thread.interrupt();
             thread.join();
         }
+        mSizeResolver.close();
     }
 
     synchronized void clearCompletedTasks() {
@@ -162,22 +206,48 @@ class DocumentLoader implements AutoCloseable {
     }
 
     /**
-     * Cancels the task for |parentIdentifier|.
+     * Cancels the tasks for |parentIdentifier|.
      *
-     * Task is removed from the cached list and it will create new task when |parentIdentifier|'s
+     * Tasks are removed from the cached list and it will create new task when |parentIdentifier|'s
      * children are queried next.
      */
     void cancelTask(Identifier parentIdentifier) {
-        final LoaderTask task;
+        final ArrayList<LoaderTask> tasks = new ArrayList<>();
         synchronized (this) {
-            task = mTaskList.findTask(parentIdentifier);
+            for (final LoaderTask task : mTaskList) {
+                if (task.mIdentifier.equals(parentIdentifier)) {
+                    tasks.add(task);
+                }
+            }
         }
-        if (task != null) {
+        for (final LoaderTask task : tasks) {
             task.cancel();
             mTaskList.remove(task);
         }
     }
 
+    /**
+     * Stores child documents enumerated outside of loader tasks, unless a task is loading or has
+     * loaded the children.
+     * @return Whether the children are stored.
+     */
+    synchronized boolean putChildDocuments(Identifier parent, MtpObjectInfo[] infoList,
+            long[] objectSizeList) throws FileNotFoundException {
+        if (mTaskList.findTask(parent, null) != null) {
+            return false;
+        }
+        final Mapper mapper = mDatabase.getMapper();
+        mapper.startAddingDocuments(parent.mDocumentId);
+        mapper.putChildDocuments(
+                parent.mDeviceId,
+                parent.mDocumentId,
+                mDevice.capabilities,
+                infoList,
+                objectSizeList);
+        mapper.stopAddingDocuments(parent.mDocumentId);
+        return true;
+    }
+
     /**
      * Background thread to fetch object info.
      */
@@ -211,9 +281,9 @@ class DocumentLoader implements AutoCloseable {
      * Task list that has helper methods to search/clear tasks.
      */
     private static class TaskList extends LinkedList<LoaderTask> {
-        LoaderTask findTask(Identifier parent) {
+        LoaderTask findTask(Identifier parent, @Nullable FormatFilter filter) {
             for (int i = 0; i < size(); i++) {
-                if (get(i).mIdentifier.equals(parent))
+                if (get(i).mIdentifier.equals(parent) && Objects.equals(get(i).mFilter, filter))
                     return get(i);
             }
             return null;
@@ -234,6 +304,8 @@ class DocumentLoader implements AutoCloseable {
     /**
      * Loader task.
      * Each task is responsible for fetching child documents for the given parent document.
+     * A task with a filter fetches only matching documents and merges them into the database
+     * without removing the others.
      */
     private static class LoaderTask {
         static final int STATE_START = 0;
@@ -244,22 +316,31 @@ class DocumentLoader implements AutoCloseable {
 
         final MtpManager mManager;
         final MtpDatabase mDatabase;
-        final int[] mOperationsSupported;
+        final int mCapabilities;
+        final @Nullable String mDeviceKey;
         final Identifier mIdentifier;
+        final @Nullable FormatFilter mFilter;
+        final ObjectSizeResolver mSizeResolver;
+        final @Nullable ThumbnailCache mThumbnailCache;
         int[] mObjectHandles;
         int mState;
         Date mLastNotified;
         int mPosition;
         IOException mError;
 
-        LoaderTask(MtpManager manager, MtpDatabase database, int[] operationsSupported,
-                Identifier identifier) {
-            assert operationsSupported != null;
+        LoaderTask(MtpManager manager, MtpDatabase database, MtpDeviceRecord device,
+                Identifier identifier, @Nullable FormatFilter filter,
+                ObjectSizeResolver sizeResolver, @Nullable ThumbnailCache thumbnailCache) {
+            assert device.operationsSupported != null;
             assert identifier.mDocumentType != MtpDatabaseConstants.DOCUMENT_TYPE_DEVICE;
             mManager = manager;
             mDatabase = database;
-            mOperationsSupported = operationsSupported;
+            mCapabilities = device.capabilities;
+            mDeviceKey = device.deviceKey;
             mIdentifier = identifier;
+            mFilter = filter;
+            mSizeResolver = sizeResolver;
+            mThumbnailCache = thumbnailCache;
             mObjectHandles = null;
             mState = STATE_START;
             mPosition = 0;
@@ -276,8 +357,27 @@ class DocumentLoader implements AutoCloseable {
                 parentHandle = MtpManager.OBJECT_HANDLE_ROOT_CHILDREN;
             }
             try {
-                mObjectHandles = mManager.getObjectHandles(
-                        mIdentifier.mDeviceId, mIdentifier.mStorageId, parentHandle);
+                if (mFilter == null) {
+                    mObjectHandles = mManager.getObjectHandles(
+                            mIdentifier.mDeviceId, mIdentifier.mStorageId, parentHandle);
+                } else {
+                    // GetObjectHandles takes a single format.
+                    final ArrayList<int[]> handlesList = new ArrayList<>();
+                    int count = 0;
+                    for (final int format : mFilter.getFormats()) {
+                        final int[] handles = mManager.getObjectHandles(
+                                mIdentifier.mDeviceId, mIdentifier.mStorageId, format,
+                                parentHandle);
+                        handlesList.add(handles);
+                        count += handles.length;
+                    }
+                    mObjectHandles = new int[count];
+                    int position = 0;
+                    for (final int[] handles : handlesList) {
+                        System.arraycopy(handles, 0, mObjectHandles, position, handles.length);
+                        position += handles.length;
+                    }
+                }
                 mState = STATE_LOADING;
             } catch (IOException error) {
                 mError = error;
@@ -290,9 +390,14 @@ class DocumentLoader implements AutoCloseable {
          * task.
          * The returned task may have a EXTRA_LOADING flag.
          */
-        synchronized Cursor createCursor(ContentResolver resolver, String[] columnNames)
-                throws IOException {
+        synchronized Cursor createCursor(ContentResolver resolver, String[] columnNames,
+                @Nullable FormatFilter filter) throws IOException {
             final Bundle extras = new Bundle();
+            if (filter != null) {
+                extras.putStringArray(
+                        ContentResolver.EXTRA_HONORED_ARGS,
+                        new String[] { DocumentsContract.QUERY_ARG_MIME_TYPES });
+            }
             switch (getState()) {
                 case STATE_LOADING:
                     extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
@@ -300,8 +405,11 @@ class DocumentLoader implements AutoCloseable {
                 case STATE_ERROR:
                     throw mError;
             }
-            final Cursor cursor =
-                    mDatabase.queryChildDocuments(columnNames, mIdentifier.mDocumentId);
+            final Cursor cursor;
+            try (final Cursor rows = mDatabase.queryChildDocuments(
+                    columnNames, mIdentifier.mDocumentId, filter)) {
+                cursor = DocumentListCursor.create(rows);
+            }
             cursor.setExtras(extras);
             cursor.setNotificationUri(resolver, createUri());
             return cursor;
@@ -315,7 +423,7 @@ class DocumentLoader implements AutoCloseable {
                 if (mState != STATE_LOADING) {
                     return;
                 }
-                if (mPosition == 0) {
+                if (mPosition == 0 && mFilter == null) {
                     try{
                         mDatabase.getMapper().startAddingDocuments(mIdentifier.mDocumentId);
                     } catch (FileNotFoundException error) {
@@ -336,37 +444,11 @@ class DocumentLoader implements AutoCloseable {
                     Log.e(MtpDocumentsProvider.TAG, "Failed to load object info", error);
                 }
             }
+            // Sizes over 4GB need another request for each object. They are stored as unknown
+            // first and resolved later, so that the listing is not blocked.
             final long[] objectSizeList = new long[infoList.size()];
             for (int i = 0; i < infoList.size(); i++) {
-                final MtpObjectInfo info = infoList.get(i);
-                // Compressed size is 32-bit unsigned integer but getCompressedSize returns the
-                // value in Java int (signed 32-bit integer). Use getCompressedSizeLong instead
-                // to get the value in Java long.
-                if (info.getCompressedSizeLong() != 0xffffffffl) {
-                    objectSizeList[i] = info.getCompressedSizeLong();
-                    continue;
-                }
-
-                if (!MtpDeviceRecord.isSupported(
-                        mOperationsSupported,
-                        MtpConstants.OPERATION_GET_OBJECT_PROP_DESC) ||
-                        !MtpDeviceRecord.isSupported(
-                                mOperationsSupported,
-                                MtpConstants.OPERATION_GET_OBJECT_PROP_VALUE)) {
-                    objectSizeList[i] = -1;
-                    continue;
-                }
-
-                // Object size is more than 4GB.
-                try {
-                    objectSizeList[i] = mManager.getObjectSizeLong(
-                            mIdentifier.mDeviceId,
-                            info.getObjectHandle(),
-                            info.getFormat());
-                } catch (IOException error) {
-                    Log.e(MtpDocumentsProvider.TAG, "Failed to get object size property.", error);
-                    objectSizeList[i] = -1;
-                }
+                objectSizeList[i] = mSizeResolver.getCachedSize(infoList.get(i));
             }
             synchronized (this) {
                 // Check if the task is cancelled or not.
@@ -374,12 +456,23 @@ class DocumentLoader implements AutoCloseable {
                     return;
                 }
                 try {
-                    mDatabase.getMapper().putChildDocuments(
-                            mIdentifier.mDeviceId,
-                            mIdentifier.mDocumentId,
-                            mOperationsSupported,
-                            infoList.toArray(new MtpObjectInfo[infoList.size()]),
-                            objectSizeList);
+                    final MtpObjectInfo[] infos = infoList.toArray(
+                            new MtpObjectInfo[infoList.size()]);
+                    if (mFilter == null) {
+                        mDatabase.getMapper().putChildDocuments(
+                                mIdentifier.mDeviceId,
+                                mIdentifier.mDocumentId,
+                                mCapabilities,
+                                infos,
+                                objectSizeList);
+                    } else {
+                        mDatabase.getMapper().mergeChildDocuments(
+                                mIdentifier.mDeviceId,
+                                mIdentifier.mDocumentId,
+                                mCapabilities,
+                                infos,
+                                objectSizeList);
+                    }
                 } catch (FileNotFoundException error) {
                     // Looks like the parent document information is removed.
                     // Adding documents has already cancelled in Mapper so we don't need to invoke
@@ -388,7 +481,15 @@ class DocumentLoader implements AutoCloseable {
                     mState = STATE_ERROR;
                     return;
                 }
-                if (mPosition >= mObjectHandles.length) {
+                for (int i = 0; i < infoList.size(); i++) {
+                    if (objectSizeList[i] < 0) {
+                        mSizeResolver.resolveLater(mIdentifier.mDocumentId, infoList.get(i));
+                    }
+                }
+                prefetchThumbnails(infoList, objectSizeList);
+                if (mPosition >= mObjectHandles.length && mFilter != null) {
+                    mState = STATE_COMPLETED;
+                } else if (mPosition >= mObjectHandles.length) {
                     try{
                         mDatabase.getMapper().stopAddingDocuments(mIdentifier.mDocumentId);
                         mState = STATE_COMPLETED;
@@ -401,11 +502,37 @@ class DocumentLoader implements AutoCloseable {
             }
         }
 
+        private void prefetchThumbnails(ArrayList<MtpObjectInfo> infoList, long[] objectSizeList) {
+            if (mThumbnailCache == null || mDeviceKey == null) {
+                return;
+            }
+            for (int i = 0; i < infoList.size(); i++) {
+                final MtpObjectInfo info = infoList.get(i);
+                if (info.getThumbCompressedSizeLong() == 0) {
+                    continue;
+                }
+                final long lastModified =
+                        info.getDateModified() != 0 ? info.getDateModified() : -1;
+                mThumbnailCache.prefetch(
+                        mManager,
+                        mIdentifier.mDeviceId,
+                        info.getObjectHandle(),
+                        ThumbnailCache.createKey(
+                                mDeviceKey,
+                                info.getStorageId(),
+                                info.getObjectHandle(),
+                                lastModified,
+                                objectSizeList[i]));
+            }
+        }
+
         /**
          * Cancels the task.
          */
         synchronized void cancel() {
-            mDatabase.getMapper().cancelAddingDocuments(mIdentifier.mDocumentId);
+            if (mFilter == null) {
+                mDatabase.getMapper().cancelAddingDocuments(mIdentifier.mDocumentId);
+            }
             mState = STATE_CANCELLED;
         }
 
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Local copy of a MTP object that is downloaded progressively.
+ * The object is streamed from the device into a sparse cache file, and readers can read the bytes
+ * below the downloaded watermark while the download continues. Reads beyond the watermark block
+ * until the range arrives.
+ */
+class DocumentSpool {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ParcelFileDescriptor mFd;
+    private final long mSize;
+    private final long mLastModified;
+
+    @GuardedBy("this")
+    private long mWatermark;
+    @GuardedBy("this")
+    private boolean mCompleted;
+    @GuardedBy("this")
+    private IOException mError;
+    @GuardedBy("this")
+    private int mReferenceCount;
+    @GuardedBy("this")
+    private boolean mEvicted;
+
+    /**
+     * @param directory Directory where the spool file is created.
+     * @param size Size of the object.
+     * @param lastModified Last modified time of the object used to check if the spool is stale.
+     */
+    DocumentSpool(File directory, long size, long lastModified) throws IOException {
+        mSize = size;
+        mLastModified = lastModified;
+        directory.mkdirs();
+        final File file = File.createTempFile("spool", "tmp", directory);
+        mFd = ParcelFileDescriptor.open(
+                file,
+                ParcelFileDescriptor.MODE_READ_WRITE |
+                ParcelFileDescriptor.MODE_TRUNCATE |
+                ParcelFileDescriptor.MODE_CREATE);
+        file.delete();
+    }
+
+    long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Whether the spool can serve the object with the given attributes.
+     */
+    synchronized boolean isValidFor(long size, long lastModified) {
+        return mError == null && !mEvicted && mSize == size && mLastModified == lastModified;
+    }
+
+    synchronized void acquire() {
+        mReferenceCount++;
+    }
+
+    synchronized void release() {
+        mReferenceCount--;
+        closeIfUnused();
+    }
+
+    /**
+     * Marks the spool as no longer reusable. The file is closed after all readers release it.
+     */
+    synchronized void evict() {
+        mEvicted = true;
+        closeIfUnused();
+    }
+
+    /**
+     * Fails pending and future reads, and evicts the spool.
+     */
+    synchronized void abort(IOException error) {
+        if (!mCompleted && mError == null) {
+            mError = error;
+        }
+        notifyAll();
+        evict();
+    }
+
+    /**
+     * Copies bytes from the source to the spool file until the end of the source.
+     * Invoked on a worker thread.
+     */
+    void pump(ParcelFileDescriptor source) {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (final InputStream stream = new ParcelFileDescriptor.AutoCloseInputStream(source)) {
+            long position = 0;
+            while (true) {
+                final int length = stream.read(buffer);
+                if (length < 0) {
+                    break;
+                }
+                synchronized (this) {
+                    // Writes under the lock so that the file is not closed while writing.
+                    if (mError != null) {
+                        return;
+                    }
+                    int written = 0;
+                    while (written < length) {
+                        written += Os.pwrite(
+                                mFd.getFileDescriptor(), buffer, written, length - written,
+                                position + written);
+                    }
+                    position += length;
+                    mWatermark = position;
+                    notifyAll();
+                }
+            }
+            synchronized (this) {
+                mCompleted = true;
+                notifyAll();
+            }
+        } catch (IOException error) {
+            fail(error);
+        } catch (ErrnoException error) {
+            fail(new IOException(error));
+        }
+    }
+
+    private synchronized void fail(IOException error) {
+        Log.e(MtpDocumentsProvider.TAG, "Failed to spool a document.", error);
+        if (mError == null) {
+            mError = error;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Reads bytes from the spool. Blocks until the range is downloaded.
+     * @return Number of read bytes.
+     */
+    int read(long offset, int size, byte[] data) throws IOException {
+        final long end = Math.min(offset + size, mSize);
+        synchronized (this) {
+            while (mWatermark < end && !mCompleted && mError == null) {
+                try {
+                    wait();
+                } catch (InterruptedException error) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mError != null) {
+                throw mError;
+            }
+        }
+        if (offset >= end) {
+            return 0;
+        }
+        try {
+            int read = 0;
+            while (read < end - offset) {
+                final int result = Os.pread(
+                        mFd.getFileDescriptor(), data, read, (int) (end - offset - read),
+                        offset + read);
+                if (result == 0) {
+                    break;
+                }
+                read += result;
+            }
+            return read;
+        } catch (ErrnoException error) {
+            throw new IOException(error);
+        }
+    }
+
+    @GuardedBy("this")
+    private void closeIfUnused() {
+        if (!mEvicted || mReferenceCount > 0 || !mFd.getFileDescriptor().valid()) {
+            return;
+        }
+        if (mError == null && !mCompleted) {
+            // Stop the pump.
+            mError = new IOException("The spool was evicted.");
+        }
+        try {
+            mFd.close();
+        } catch (IOException error) {
+            Log.w(MtpDocumentsProvider.TAG, "Failed to close a spool file.", error);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.annotation.Nullable;
+import android.media.MediaFile;
+import android.mtp.MtpConstants;
+import android.provider.DocumentsContract.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Filter of documents by MIME types that is translated into MTP object formats, so that the
+ * device returns only matching object handles. Folders always pass the filter so that clients can
+ * navigate to matching documents.
+ *
+ * Objects of undefined format are also listed, because their MIME types are resolved from their
+ * names, and the MIME types of listed objects are filtered again in the database. Wildcard MIME
+ * types are not expressible, because devices report formats outside of the list, such as HEIF or
+ * WebP images, with vendor or undefined format codes.
+ */
+class FormatFilter {
+    /**
+     * Formats that can be filtered. MIME types of other formats are not expressible.
+     */
+    private static final int[] FILTERABLE_FORMATS = new int[] {
+            MtpConstants.FORMAT_EXIF_JPEG,
+            MtpConstants.FORMAT_JFIF,
+            MtpConstants.FORMAT_TIFF_EP,
+            MtpConstants.FORMAT_TIFF,
+            MtpConstants.FORMAT_BMP,
+            MtpConstants.FORMAT_GIF,
+            MtpConstants.FORMAT_PNG,
+            MtpConstants.FORMAT_JP2,
+            MtpConstants.FORMAT_JPX,
+            MtpConstants.FORMAT_DNG,
+            MtpConstants.FORMAT_MP3,
+            MtpConstants.FORMAT_MP2,
+            MtpConstants.FORMAT_WAV,
+            MtpConstants.FORMAT_AIFF,
+            MtpConstants.FORMAT_AAC,
+            MtpConstants.FORMAT_WMA,
+            MtpConstants.FORMAT_OGG,
+            MtpConstants.FORMAT_FLAC,
+            MtpConstants.FORMAT_MPEG,
+            MtpConstants.FORMAT_AVI,
+            MtpConstants.FORMAT_ASF,
+            MtpConstants.FORMAT_WMV,
+            MtpConstants.FORMAT_MP4_CONTAINER,
+            MtpConstants.FORMAT_3GP_CONTAINER
+    };
+
+    private final String[] mMimeTypes;
+    private final int[] mFormats;
+
+    private FormatFilter(String[] mimeTypes, int[] formats) {
+        mMimeTypes = mimeTypes;
+        mFormats = formats;
+    }
+
+    /**
+     * Creates a filter for the MIME types.
+     * @param mimeTypes MIME types to be matched.
+     * @return Filter, or null if the MIME types cannot be expressed with MTP formats.
+     */
+    static @Nullable FormatFilter create(@Nullable String[] mimeTypes) {
+        if (mimeTypes == null || mimeTypes.length == 0) {
+            return null;
+        }
+        final ArrayList<Integer> formats = new ArrayList<>();
+        formats.add(MtpConstants.FORMAT_ASSOCIATION);
+        formats.add(MtpConstants.FORMAT_UNDEFINED);
+        for (final String mimeType : mimeTypes) {
+            if (mimeType.endsWith("/*")) {
+                return null;
+            }
+            boolean matched = false;
+            for (final int format : FILTERABLE_FORMATS) {
+                if (mimeType.equals(MediaFile.getMimeTypeForFormatCode(format))) {
+                    matched = true;
+                    if (!formats.contains(format)) {
+                        formats.add(format);
+                    }
+                }
+            }
+            if (!matched) {
+                return null;
+            }
+        }
+        final int[] formatArray = new int[formats.size()];
+        for (int i = 0; i < formatArray.length; i++) {
+            formatArray[i] = formats.get(i);
+        }
+        Arrays.sort(formatArray);
+        final String[] sortedMimeTypes = mimeTypes.clone();
+        Arrays.sort(sortedMimeTypes);
+        return new FormatFilter(sortedMimeTypes, formatArray);
+    }
+
+    /**
+     * Returns formats to be passed to GetObjectHandles.
+     */
+    int[] getFormats() {
+        return mFormats;
+    }
+
+    /**
+     * Returns SQL selection matching the documents that pass the filter.
+     */
+    String getSelection() {
+        final StringBuilder builder = new StringBuilder("(" + Document.COLUMN_MIME_TYPE + " = ?");
+        for (int i = 0; i < mMimeTypes.length; i++) {
+            builder.append(" OR " + Document.COLUMN_MIME_TYPE + " = ?");
+        }
+        return builder.append(")").toString();
+    }
+
+    String[] getSelectionArgs() {
+        final String[] args = new String[mMimeTypes.length + 1];
+        args[0] = Document.MIME_TYPE_DIR;
+        System.arraycopy(mMimeTypes, 0, args, 1, mMimeTypes.length);
+        return args;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FormatFilter)) {
+            return false;
+        }
+        final FormatFilter other = (FormatFilter) obj;
+        return Arrays.equals(mMimeTypes, other.mMimeTypes) &&
+                Arrays.equals(mFormats, other.mFormats);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mFormats);
+    }
+}
@@ -21,18 +21,26 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.media.MediaFile;
+import android.mtp.MtpConstants;
 import android.mtp.MtpObjectInfo;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.util.Preconditions;
 
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 import java.util.Set;
 
 import static com.android.mtp.MtpDatabaseConstants.*;
+import static com.android.mtp.MtpDatabase.OBJECT_COLUMNS;
 import static com.android.mtp.MtpDatabase.strings;
 
 /**
@@ -41,6 +49,34 @@ import static com.android.mtp.MtpDatabase.strings;
  */
 class Mapper {
     private static final String[] EMPTY_ARGS = new String[0];
+
+    /**
+     * Maximum number of extensions whose MIME types are memoized for each format.
+     */
+    private static final int MAX_MIME_TYPES_PER_FORMAT = 64;
+
+    private static final String QUERY_INSERT_OBJECT = createQueryInsertObject();
+
+    private static final String QUERY_UPDATE_OBJECT = createQueryUpdateObject();
+
+    private static final String QUERY_MERGE_OBJECT = createQueryMergeObject();
+
+    /**
+     * Index of the row state in statements binding {@link #OBJECT_COLUMNS}.
+     */
+    private static final int ROW_STATE_INDEX =
+            Arrays.asList(OBJECT_COLUMNS).indexOf(COLUMN_ROW_STATE) + 1;
+
+    /**
+     * Queries to find the existing row of an object. Rows are matched by object handle, and then
+     * by display name because object handles change across MTP sessions.
+     */
+    private static final String QUERY_OBJECT_CANDIDATE_BY_HANDLE =
+            createQueryObjectCandidate(COLUMN_OBJECT_HANDLE);
+
+    private static final String QUERY_OBJECT_CANDIDATE_BY_NAME =
+            createQueryObjectCandidate(Document.COLUMN_DISPLAY_NAME);
+
     private final MtpDatabase mDatabase;
 
     /**
@@ -48,6 +84,11 @@ class Mapper {
      */
     private final Set<String> mInMappingIds = new ArraySet<>();
 
+    /**
+     * MIME types keyed by format and then by file extension. Guarded by the Mapper instance.
+     */
+    private final SparseArray<ArrayMap<String, String>> mMimeTypes = new SparseArray<>();
+
     Mapper(MtpDatabase database) {
         mDatabase = database;
     }
@@ -85,12 +126,13 @@ class Mapper {
      * Puts root information to database.
      *
      * @param parentDocumentId Document ID of device document.
+     * @param capabilities Capabilities of the device. See {@link MtpDeviceRecord#capabilities}.
      * @param roots List of root information.
      * @return If roots are added or removed from the database.
      * @throws FileNotFoundException
      */
     synchronized boolean putStorageDocuments(
-            String parentDocumentId, int[] operationsSupported, MtpRoot[] roots)
+            String parentDocumentId, int capabilities, MtpRoot[] roots)
             throws FileNotFoundException {
         final SQLiteDatabase database = mDatabase.getSQLiteDatabase();
         database.beginTransaction();
@@ -104,7 +146,7 @@ class Mapper {
                         valuesList[i],
                         extraValuesList[i],
                         parentDocumentId,
-                        operationsSupported,
+                        capabilities,
                         roots[i]);
             }
             final boolean changed = putDocuments(
@@ -127,6 +169,7 @@ class Mapper {
      *
      * @param deviceId Device ID
      * @param parentId Parent document ID.
+     * @param capabilities Capabilities of the device. See {@link MtpDeviceRecord#capabilities}.
      * @param documents List of document information.
      * @param documentSizes 64-bit size of documents. MtpObjectInfo#getComporessedSize will be
      *     ignored because it does not contain 4GB> object size. Can be -1 if the size is unknown.
@@ -134,29 +177,105 @@ class Mapper {
      */
     synchronized void putChildDocuments(
             int deviceId, String parentId,
-            int[] operationsSupported,
+            int capabilities,
             MtpObjectInfo[] documents,
             long[] documentSizes)
             throws FileNotFoundException {
         assert documents.length == documentSizes.length;
-        final ContentValues[] valuesList = new ContentValues[documents.length];
-        for (int i = 0; i < documents.length; i++) {
-            valuesList[i] = new ContentValues();
-            MtpDatabase.getObjectDocumentValues(
-                    valuesList[i],
-                    deviceId,
-                    parentId,
-                    operationsSupported,
-                    documents[i],
-                    documentSizes[i]);
+        final SQLiteDatabase database = mDatabase.getSQLiteDatabase();
+        database.beginTransaction();
+        // Objects are put with the same mapping as putDocuments, but values are bound to
+        // precompiled statements directly instead of going through ContentValues for each row.
+        try (final SQLiteStatement candidateByHandle =
+                     database.compileStatement(QUERY_OBJECT_CANDIDATE_BY_HANDLE);
+             final SQLiteStatement candidateByName =
+                     database.compileStatement(QUERY_OBJECT_CANDIDATE_BY_NAME);
+             final SQLiteStatement insert = database.compileStatement(QUERY_INSERT_OBJECT);
+             final SQLiteStatement update = database.compileStatement(QUERY_UPDATE_OBJECT)) {
+            final MtpDatabase.ObjectColumnWriter insertWriter =
+                    MtpDatabase.createObjectColumnWriter(insert);
+            final MtpDatabase.ObjectColumnWriter updateWriter =
+                    MtpDatabase.createObjectColumnWriter(update);
+            getParentOrHaltMapping(parentId);
+            Preconditions.checkState(mInMappingIds.contains(parentId));
+            for (int i = 0; i < documents.length; i++) {
+                final MtpObjectInfo info = documents[i];
+                candidateByHandle.bindString(1, parentId);
+                candidateByHandle.bindLong(2, info.getObjectHandle());
+                long rowId = queryCandidate(candidateByHandle);
+                if (rowId == -1 && info.getName() != null) {
+                    candidateByName.bindString(1, parentId);
+                    candidateByName.bindString(2, info.getName());
+                    rowId = queryCandidate(candidateByName);
+                }
+                if (rowId == -1) {
+                    writeObjectColumns(
+                            insertWriter, deviceId, parentId, capabilities, info,
+                            documentSizes[i]);
+                    insert.executeInsert();
+                } else {
+                    writeObjectColumns(
+                            updateWriter, deviceId, parentId, capabilities, info,
+                            documentSizes[i]);
+                    update.bindLong(OBJECT_COLUMNS.length + 1, rowId);
+                    update.executeUpdateDelete();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Puts documents found by a filtered listing without a mapping cycle, since the listing does
+     * not tell which documents are removed. Existing rows are matched by object handle and rows
+     * missing from the list are kept. While the parent is being mapped, new documents are left
+     * to the mapping so that they are not duplicated.
+     *
+     * @param deviceId Device ID
+     * @param parentId Parent document ID.
+     * @param capabilities Capabilities of the device. See {@link MtpDeviceRecord#capabilities}.
+     * @param documents List of document information.
+     * @param documentSizes 64-bit size of documents, or -1 if the size is unknown.
+     * @throws FileNotFoundException When parentId is not registered in the database.
+     */
+    synchronized void mergeChildDocuments(
+            int deviceId, String parentId,
+            int capabilities,
+            MtpObjectInfo[] documents,
+            long[] documentSizes)
+            throws FileNotFoundException {
+        assert documents.length == documentSizes.length;
+        final SQLiteDatabase database = mDatabase.getSQLiteDatabase();
+        database.beginTransaction();
+        try (final SQLiteStatement merge = database.compileStatement(QUERY_MERGE_OBJECT);
+             final SQLiteStatement insert = database.compileStatement(QUERY_INSERT_OBJECT)) {
+            final MtpDatabase.ObjectColumnWriter mergeWriter =
+                    MtpDatabase.createObjectColumnWriter(merge);
+            final MtpDatabase.ObjectColumnWriter insertWriter =
+                    MtpDatabase.createObjectColumnWriter(insert);
+            mDatabase.createIdentifier(parentId);
+            final boolean inMapping = mInMappingIds.contains(parentId);
+            for (int i = 0; i < documents.length; i++) {
+                final MtpObjectInfo info = documents[i];
+                writeObjectColumns(
+                        mergeWriter, deviceId, parentId, capabilities, info, documentSizes[i]);
+                // Keeps invalidated rows for the mapping.
+                merge.bindNull(ROW_STATE_INDEX);
+                merge.bindString(OBJECT_COLUMNS.length + 1, parentId);
+                merge.bindLong(OBJECT_COLUMNS.length + 2, info.getObjectHandle());
+                if (merge.executeUpdateDelete() == 0 && !inMapping) {
+                    writeObjectColumns(
+                            insertWriter, deviceId, parentId, capabilities, info,
+                            documentSizes[i]);
+                    insert.executeInsert();
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
-        putDocuments(
-                parentId,
-                valuesList,
-                null,
-                COLUMN_PARENT_DOCUMENT_ID + " = ?",
-                strings(parentId),
-                strings(COLUMN_OBJECT_HANDLE, Document.COLUMN_DISPLAY_NAME));
     }
 
     void clearMapping() {
@@ -449,6 +568,104 @@ class Mapper {
                 "1");
     }
 
+    /**
+     * Runs a candidate query for an object.
+     * @return Document ID of the candidate, or -1 if no candidate is found.
+     */
+    private static long queryCandidate(SQLiteStatement statement) {
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the values of {@link MtpDatabase#OBJECT_COLUMNS} with the memoized MIME type.
+     */
+    private void writeObjectColumns(
+            MtpDatabase.ObjectColumnWriter writer, int deviceId, String parentId,
+            int capabilities, MtpObjectInfo info, long size) {
+        MtpDatabase.writeObjectColumns(
+                writer, deviceId, parentId, capabilities, info, getMimeType(info), size);
+    }
+
+    /**
+     * Returns the MIME type of the object. MediaFile only looks at the extension and the format,
+     * so the result is memoized with them.
+     */
+    private String getMimeType(MtpObjectInfo info) {
+        if (info.getFormat() == MtpConstants.FORMAT_ASSOCIATION) {
+            return Document.MIME_TYPE_DIR;
+        }
+        final String name = info.getName() != null ? info.getName() : "";
+        final int index = name.lastIndexOf('.');
+        final String extension = index != -1 ? name.substring(index + 1) : "";
+        ArrayMap<String, String> mimeTypes = mMimeTypes.get(info.getFormat());
+        if (mimeTypes == null) {
+            mimeTypes = new ArrayMap<>();
+            mMimeTypes.put(info.getFormat(), mimeTypes);
+        }
+        String mimeType = mimeTypes.get(extension);
+        if (mimeType == null) {
+            mimeType = MediaFile.getMimeType(name, info.getFormat());
+            if (mimeTypes.size() >= MAX_MIME_TYPES_PER_FORMAT) {
+                mimeTypes.clear();
+            }
+            mimeTypes.put(extension, mimeType);
+        }
+        return mimeType;
+    }
+
+    private static String createQueryInsertObject() {
+        final StringBuilder builder = new StringBuilder("INSERT INTO " + TABLE_DOCUMENTS + " (");
+        for (int i = 0; i < OBJECT_COLUMNS.length; i++) {
+            builder.append(i == 0 ? "" : ", ").append(OBJECT_COLUMNS[i]);
+        }
+        builder.append(") VALUES (");
+        for (int i = 0; i < OBJECT_COLUMNS.length; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.append(")").toString();
+    }
+
+    private static String createQueryUpdateObject() {
+        final StringBuilder builder = new StringBuilder("UPDATE " + TABLE_DOCUMENTS + " SET ");
+        for (int i = 0; i < OBJECT_COLUMNS.length; i++) {
+            builder.append(i == 0 ? "" : ", ").append(OBJECT_COLUMNS[i]).append(" = ?");
+        }
+        return builder.append(" WHERE " + Document.COLUMN_DOCUMENT_ID + " = ?").toString();
+    }
+
+    /**
+     * Creates a query updating the valid or invalidated row of an object found by parent and
+     * object handle. The row state is kept if null is bound to it.
+     */
+    private static String createQueryMergeObject() {
+        final StringBuilder builder = new StringBuilder("UPDATE " + TABLE_DOCUMENTS + " SET ");
+        for (int i = 0; i < OBJECT_COLUMNS.length; i++) {
+            builder.append(i == 0 ? "" : ", ").append(OBJECT_COLUMNS[i]);
+            if (OBJECT_COLUMNS[i].equals(COLUMN_ROW_STATE)) {
+                builder.append(" = IFNULL(?, " + COLUMN_ROW_STATE + ")");
+            } else {
+                builder.append(" = ?");
+            }
+        }
+        return builder.append(" WHERE " +
+                COLUMN_PARENT_DOCUMENT_ID + " = ? AND " +
+                COLUMN_OBJECT_HANDLE + " = ? AND " +
+                COLUMN_ROW_STATE + " IN (" +
+                ROW_STATE_VALID + ", " + ROW_STATE_INVALIDATED + ")").toString();
+    }
+
+    private static String createQueryObjectCandidate(String mappingKey) {
+        return "SELECT " + Document.COLUMN_DOCUMENT_ID + " FROM " + TABLE_DOCUMENTS + " " +
+                "WHERE " + COLUMN_PARENT_DOCUMENT_ID + " = ? AND " +
+                COLUMN_ROW_STATE + " IN (" +
+                ROW_STATE_INVALIDATED + ", " + ROW_STATE_DISCONNECTED + ") AND " +
+                mappingKey + " = ? LIMIT 1";
+    }
+
     /**
      * Returns the parent identifier from parent document ID if the parent ID is found in the
      * database. Otherwise it halts mapping and throws FileNotFoundException.
@@ -30,6 +30,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.media.MediaFile;
 import android.mtp.MtpConstants;
 import android.mtp.MtpObjectInfo;
@@ -38,15 +39,16 @@ import android.provider.DocumentsContract;
 import android.provider.MetadataReader;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.Preconditions;
 
 import java.io.FileNotFoundException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 
 /**
  * Database for MTP objects.
@@ -96,6 +98,10 @@ class MtpDatabase {
 
     MtpDatabase(Context context, int flags) {
         final OpenHelper helper = new OpenHelper(context, flags);
+        // Lets queries for a device read the database while another device is being mapped.
+        // Documents of all devices stay in a single database because document IDs, which are
+        // row IDs of the table, are persisted by clients and must be unique across devices.
+        helper.setWriteAheadLoggingEnabled(flags == FLAG_DATABASE_IN_FILE);
         mDatabase = helper.getWritableDatabase();
         mMapper = new Mapper(this);
     }
@@ -239,16 +245,76 @@ class MtpDatabase {
      * @return Database cursor.
      */
     Cursor queryChildDocuments(String[] columnNames, String parentDocumentId) {
+        return queryChildDocuments(columnNames, parentDocumentId, null);
+    }
+
+    /**
+     * Queries child documents that pass the filter.
+     * @param filter Filter of documents, or null to query all child documents.
+     */
+    Cursor queryChildDocuments(
+            String[] columnNames, String parentDocumentId, @Nullable FormatFilter filter) {
+        String selection =
+                COLUMN_ROW_STATE + " IN (?, ?) AND " + COLUMN_PARENT_DOCUMENT_ID + " = ?";
+        String[] args = strings(ROW_STATE_VALID, ROW_STATE_INVALIDATED, parentDocumentId);
+        if (filter != null) {
+            selection += " AND " + filter.getSelection();
+            args = DatabaseUtils.appendSelectionArgs(args, filter.getSelectionArgs());
+        }
         return mDatabase.query(
                 TABLE_DOCUMENTS,
                 columnNames,
-                COLUMN_ROW_STATE + " IN (?, ?) AND " + COLUMN_PARENT_DOCUMENT_ID + " = ?",
-                strings(ROW_STATE_VALID, ROW_STATE_INVALIDATED, parentDocumentId),
+                selection,
+                args,
                 null,
                 null,
                 null);
     }
 
+    /**
+     * Stores the size of the object whose size was unknown.
+     * @return Whether the size is stored.
+     */
+    boolean updateObjectSize(String parentDocumentId, int objectHandle, long size) {
+        final ContentValues values = new ContentValues();
+        values.put(Document.COLUMN_SIZE, size);
+        return mDatabase.update(
+                TABLE_DOCUMENTS,
+                values,
+                COLUMN_PARENT_DOCUMENT_ID + " = ? AND " + COLUMN_OBJECT_HANDLE + " = ? AND " +
+                COLUMN_ROW_STATE + " IN (?, ?) AND " + Document.COLUMN_SIZE + " IS NULL",
+                strings(parentDocumentId, objectHandle, ROW_STATE_VALID, ROW_STATE_INVALIDATED))
+                != 0;
+    }
+
+    /**
+     * Returns whether the document has child documents that are not mapped since the device was
+     * connected again.
+     */
+    boolean hasDisconnectedChildren(String parentDocumentId) {
+        return DatabaseUtils.queryNumEntries(
+                mDatabase,
+                TABLE_DOCUMENTS,
+                COLUMN_ROW_STATE + " = ? AND " + COLUMN_PARENT_DOCUMENT_ID + " = ?",
+                strings(ROW_STATE_DISCONNECTED, parentDocumentId)) != 0;
+    }
+
+    /**
+     * Returns display names of the known child documents.
+     * @param parentDocumentId Parent document ID.
+     * @return Display names.
+     */
+    String[] getChildDisplayNames(String parentDocumentId) {
+        try (final Cursor cursor = queryChildDocuments(
+                strings(Document.COLUMN_DISPLAY_NAME), parentDocumentId)) {
+            final String[] names = new String[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                names[i] = cursor.getString(0);
+            }
+            return names;
+        }
+    }
+
     /**
      * Returns document IDs of storages under the given device document.
      *
@@ -300,6 +366,61 @@ class MtpDatabase {
                 "1");
     }
 
+    /**
+     * Queries documents with a single indexed query.
+     * @param documentIds Document IDs. The caller must keep the number of IDs below the limit of
+     *     SQL variables.
+     */
+    Cursor queryDocuments(String[] documentIds, String[] projection) {
+        final StringBuilder selection = new StringBuilder(Document.COLUMN_DOCUMENT_ID + " IN (");
+        for (int i = 0; i < documentIds.length; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        selection.append(")");
+        return mDatabase.query(
+                TABLE_DOCUMENTS,
+                projection,
+                selection.toString(),
+                documentIds,
+                null,
+                null,
+                null);
+    }
+
+    /**
+     * Returns the sequence numbers of the oldest and newest changes in the journal.
+     * @return Array of the oldest and newest sequence numbers, or zeros if the journal is empty.
+     */
+    long[] getChangeSequenceRange() {
+        try (final Cursor cursor = mDatabase.rawQuery(
+                "SELECT IFNULL(MIN(" + COLUMN_SEQUENCE + "), 0), " +
+                "IFNULL(MAX(" + COLUMN_SEQUENCE + "), 0) FROM " + TABLE_CHANGES,
+                null)) {
+            cursor.moveToNext();
+            return new long[] { cursor.getLong(0), cursor.getLong(1) };
+        }
+    }
+
+    /**
+     * Queries changes recorded after the sequence number in the order of sequence numbers.
+     * The cursor has COLUMN_SEQUENCE, Document.COLUMN_DOCUMENT_ID, COLUMN_PARENT_DOCUMENT_ID and
+     * COLUMN_CHANGE_TYPE.
+     */
+    Cursor queryChanges(long sequence, int limit) {
+        return mDatabase.query(
+                TABLE_CHANGES,
+                strings(COLUMN_SEQUENCE,
+                        Document.COLUMN_DOCUMENT_ID,
+                        COLUMN_PARENT_DOCUMENT_ID,
+                        COLUMN_CHANGE_TYPE),
+                COLUMN_SEQUENCE + " > ?",
+                strings(sequence),
+                null,
+                null,
+                COLUMN_SEQUENCE,
+                String.valueOf(limit));
+    }
+
     @Nullable String getDocumentIdForDevice(int deviceId) {
         final Cursor cursor = mDatabase.query(
                 TABLE_DOCUMENTS,
@@ -348,6 +469,34 @@ class MtpDatabase {
         }
     }
 
+    /**
+     * Obtains the document and its ancestors with a single query.
+     * @param documentId Document ID.
+     * @return Ancestors from the document to the device. The list stops before the first
+     *     document that cannot be obtained by {@link #createIdentifier(String)}, and is empty if
+     *     the document itself cannot be.
+     */
+    Ancestor[] getAncestors(String documentId) {
+        try (final Cursor cursor = mDatabase.rawQuery(QUERY_ANCESTORS, strings(documentId))) {
+            final ArrayList<Ancestor> ancestors = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                final int rowState = cursor.getInt(5);
+                if (rowState != ROW_STATE_VALID && rowState != ROW_STATE_INVALIDATED) {
+                    break;
+                }
+                ancestors.add(new Ancestor(
+                        new Identifier(
+                                cursor.getInt(0),
+                                cursor.getInt(1),
+                                cursor.getInt(2),
+                                cursor.getString(3),
+                                cursor.getInt(4)),
+                        cursor.getInt(6)));
+            }
+            return ancestors.toArray(new Ancestor[ancestors.size()]);
+        }
+    }
+
     String getDeviceDocumentId(int deviceId) throws FileNotFoundException {
         try (final Cursor cursor = mDatabase.query(
                 TABLE_DOCUMENTS,
@@ -379,11 +528,11 @@ class MtpDatabase {
      * @return Document ID of added document.
      */
     String putNewDocument(
-            int deviceId, String parentDocumentId, int[] operationsSupported, MtpObjectInfo info,
+            int deviceId, String parentDocumentId, int capabilities, MtpObjectInfo info,
             long size) {
         final ContentValues values = new ContentValues();
         getObjectDocumentValues(
-                values, deviceId, parentDocumentId, operationsSupported, info, size);
+                values, deviceId, parentDocumentId, capabilities, info, size);
         mDatabase.beginTransaction();
         try {
             final long id = mDatabase.insert(TABLE_DOCUMENTS, null, values);
@@ -402,6 +551,22 @@ class MtpDatabase {
         deleteDocumentsAndRootsRecursively(SELECTION_DOCUMENT_ID, strings(documentId));
     }
 
+    /**
+     * Deletes documents and their children in one transaction.
+     * @param documentIds Document IDs.
+     */
+    void deleteDocuments(List<String> documentIds) {
+        mDatabase.beginTransaction();
+        try {
+            for (final String documentId : documentIds) {
+                deleteDocumentsAndRootsRecursively(SELECTION_DOCUMENT_ID, strings(documentId));
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
     /**
      * Gets identifier from document ID.
      * @param documentId Document ID.
@@ -595,10 +760,10 @@ class MtpDatabase {
         }
     }
 
-    void updateObject(String documentId, int deviceId, String parentId, int[] operationsSupported,
+    void updateObject(String documentId, int deviceId, String parentId, int capabilities,
                       MtpObjectInfo info, Long size) {
         final ContentValues values = new ContentValues();
-        getObjectDocumentValues(values, deviceId, parentId, operationsSupported, info, size);
+        getObjectDocumentValues(values, deviceId, parentId, capabilities, info, size);
 
         mDatabase.beginTransaction();
         try {
@@ -619,16 +784,16 @@ class MtpDatabase {
      * @return Identifier of found document or null.
      */
     @Nullable Identifier getUnmappedDocumentsParent(int deviceId) {
+        // Parents are taken from the table of pending parents, which triggers keep up to date,
+        // instead of joining all documents.
         final String fromClosure =
-                TABLE_DOCUMENTS + " AS child INNER JOIN " +
-                TABLE_DOCUMENTS + " AS parent ON " +
-                "child." + COLUMN_PARENT_DOCUMENT_ID + " = " +
+                TABLE_PENDING_PARENTS + " INNER JOIN " + TABLE_DOCUMENTS + " AS parent ON " +
+                TABLE_PENDING_PARENTS + "." + Document.COLUMN_DOCUMENT_ID + " = " +
                 "parent." + Document.COLUMN_DOCUMENT_ID;
         final String whereClosure =
-                "parent." + COLUMN_DEVICE_ID + " = ? AND " +
+                TABLE_PENDING_PARENTS + "." + COLUMN_DEVICE_ID + " = ? AND " +
                 "parent." + COLUMN_ROW_STATE + " IN (?, ?) AND " +
-                "parent." + COLUMN_DOCUMENT_TYPE + " != ? AND " +
-                "child." + COLUMN_ROW_STATE + " = ?";
+                "parent." + COLUMN_DOCUMENT_TYPE + " != ?";
         try (final Cursor cursor = mDatabase.query(
                 fromClosure,
                 strings("parent." + COLUMN_DEVICE_ID,
@@ -637,8 +802,7 @@ class MtpDatabase {
                         "parent." + Document.COLUMN_DOCUMENT_ID,
                         "parent." + COLUMN_DOCUMENT_TYPE),
                 whereClosure,
-                strings(deviceId, ROW_STATE_VALID, ROW_STATE_INVALIDATED, DOCUMENT_TYPE_DEVICE,
-                        ROW_STATE_DISCONNECTED),
+                strings(deviceId, ROW_STATE_VALID, ROW_STATE_INVALIDATED, DOCUMENT_TYPE_DEVICE),
                 null,
                 null,
                 null,
@@ -658,40 +822,95 @@ class MtpDatabase {
 
     /**
      * Removes metadata except for data used by outgoingPersistedUriPermissions.
+     * Only disconnected documents are removed, so that documents mapped while the method runs
+     * are kept. Documents are examined in small transactions so that other operations can use
+     * the database in between, and the method returns early if the thread is interrupted.
      */
     void cleanDatabase(Uri[] outgoingPersistedUris) {
+        final String[] protectedIds = new String[outgoingPersistedUris.length];
+        for (int i = 0; i < outgoingPersistedUris.length; i++) {
+            protectedIds[i] = getDocumentIdOrNull(outgoingPersistedUris[i]);
+            if (protectedIds[i] == null) {
+                Log.w(TAG, "cleanDatabase: Skip cleaning for the unexpected URI " +
+                        outgoingPersistedUris[i]);
+                return;
+            }
+        }
+
         mDatabase.beginTransaction();
         try {
-            final Set<String> ids = new HashSet<>();
-            for (final Uri uri : outgoingPersistedUris) {
-                String documentId = DocumentsContract.getDocumentId(uri);
-                while (documentId != null) {
-                    if (ids.contains(documentId)) {
-                        break;
-                    }
-                    ids.add(documentId);
-                    try (final Cursor cursor = mDatabase.query(
-                            TABLE_DOCUMENTS,
-                            strings(COLUMN_PARENT_DOCUMENT_ID),
-                            SELECTION_DOCUMENT_ID,
-                            strings(documentId),
-                            null,
-                            null,
-                            null)) {
-                        documentId = cursor.moveToNext() ? cursor.getString(0) : null;
-                    }
+            mDatabase.execSQL(QUERY_CREATE_PROTECTED_DOCUMENTS);
+            mDatabase.delete(TABLE_PROTECTED_DOCUMENTS, null, null);
+            for (final String id : protectedIds) {
+                mDatabase.execSQL(QUERY_PROTECT_ANCESTORS, new Object[] { id });
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        try {
+            long lastDocumentId = 0;
+            while (lastDocumentId != -1 && !Thread.currentThread().isInterrupted()) {
+                lastDocumentId = cleanDocuments(lastDocumentId);
+            }
+        } finally {
+            mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_PROTECTED_DOCUMENTS);
+        }
+    }
+
+    /**
+     * Removes unprotected and disconnected documents among the next NUM_CLEANING_DOCUMENTS
+     * documents.
+     * @param lastDocumentId Last document ID examined by the previous call.
+     * @return Last document ID examined by the call, or -1 if no document is left.
+     */
+    private long cleanDocuments(long lastDocumentId) {
+        mDatabase.beginTransaction();
+        try {
+            final long nextLastDocumentId;
+            try (final Cursor cursor = mDatabase.rawQuery(
+                    "SELECT MAX(" + Document.COLUMN_DOCUMENT_ID + ") FROM (" +
+                    "SELECT " + Document.COLUMN_DOCUMENT_ID + " FROM " + TABLE_DOCUMENTS +
+                    " WHERE " + Document.COLUMN_DOCUMENT_ID + " > ?" +
+                    " ORDER BY " + Document.COLUMN_DOCUMENT_ID +
+                    " LIMIT " + NUM_CLEANING_DOCUMENTS + ")",
+                    strings(lastDocumentId))) {
+                if (!cursor.moveToNext() || cursor.isNull(0)) {
+                    return -1;
                 }
+                nextLastDocumentId = cursor.getLong(0);
             }
             deleteDocumentsAndRoots(
-                    Document.COLUMN_DOCUMENT_ID + " NOT IN " + getIdList(ids), null);
+                    Document.COLUMN_DOCUMENT_ID + " > ? AND " +
+                    Document.COLUMN_DOCUMENT_ID + " <= ? AND " +
+                    COLUMN_ROW_STATE + " = ? AND " +
+                    Document.COLUMN_DOCUMENT_ID + " NOT IN (SELECT " +
+                    Document.COLUMN_DOCUMENT_ID + " FROM " + TABLE_PROTECTED_DOCUMENTS + ")",
+                    strings(lastDocumentId, nextLastDocumentId, ROW_STATE_DISCONNECTED));
             mDatabase.setTransactionSuccessful();
-        } catch (IllegalArgumentException exArg) {
-            Log.w(TAG, "cleanDatabase.IllegalArgumentException (bypassed), dump:", exArg);
+            return nextLastDocumentId;
         } finally {
             mDatabase.endTransaction();
         }
     }
 
+    /**
+     * Returns the ID of the document or the tree granted by the URI.
+     * @return Document ID, or null if the URI does not point a document of the provider.
+     */
+    private static @Nullable String getDocumentIdOrNull(Uri uri) {
+        final String documentId;
+        try {
+            documentId = DocumentsContract.isTreeUri(uri) ?
+                    DocumentsContract.getTreeDocumentId(uri) :
+                    DocumentsContract.getDocumentId(uri);
+        } catch (IllegalArgumentException error) {
+            return null;
+        }
+        return !documentId.isEmpty() && TextUtils.isDigitsOnly(documentId) ? documentId : null;
+    }
+
     int getLastBootCount() {
         try (final Cursor cursor = mDatabase.query(
                 TABLE_LAST_BOOT_COUNT, strings(COLUMN_VALUE), null, null, null, null, null)) {
@@ -717,6 +936,23 @@ class MtpDatabase {
         }
     }
 
+    /**
+     * Element of the ancestor chain returned by {@link #getAncestors(String)}.
+     */
+    static class Ancestor {
+        final Identifier mIdentifier;
+
+        /**
+         * Number of storages if the ancestor is a device, otherwise 0.
+         */
+        final int mStorageCount;
+
+        Ancestor(Identifier identifier, int storageCount) {
+            mIdentifier = identifier;
+            mStorageCount = storageCount;
+        }
+    }
+
     private static class OpenHelper extends SQLiteOpenHelper {
         public OpenHelper(Context context, int flags) {
             super(context,
@@ -730,6 +966,17 @@ class MtpDatabase {
             db.execSQL(QUERY_CREATE_DOCUMENTS);
             db.execSQL(QUERY_CREATE_ROOT_EXTRA);
             db.execSQL(QUERY_CREATE_LAST_BOOT_COUNT);
+            db.execSQL(QUERY_CREATE_CHANGES);
+            db.execSQL(QUERY_CREATE_TRIGGER_DOCUMENT_ADDED);
+            db.execSQL(QUERY_CREATE_TRIGGER_DOCUMENT_UPDATED);
+            db.execSQL(QUERY_CREATE_TRIGGER_DOCUMENT_DELETED);
+            db.execSQL(QUERY_CREATE_TRIGGER_COMPACT_CHANGES);
+            db.execSQL(QUERY_CREATE_INDEX_DOCUMENTS_PARENT);
+            db.execSQL(QUERY_CREATE_PENDING_PARENTS);
+            db.execSQL(QUERY_CREATE_INDEX_PENDING_PARENTS_DEVICE);
+            db.execSQL(QUERY_CREATE_TRIGGER_PENDING_PARENT_ADDED);
+            db.execSQL(QUERY_CREATE_TRIGGER_PENDING_PARENT_UPDATED);
+            db.execSQL(QUERY_CREATE_TRIGGER_PENDING_PARENT_DELETED);
         }
 
         @Override
@@ -737,6 +984,8 @@ class MtpDatabase {
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_DOCUMENTS);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_ROOT_EXTRA);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_LAST_BOOT_COUNT);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHANGES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_PENDING_PARENTS);
             onCreate(db);
         }
     }
@@ -764,7 +1013,7 @@ class MtpDatabase {
         values.putNull(Document.COLUMN_LAST_MODIFIED);
         values.put(Document.COLUMN_ICON, R.drawable.ic_root_mtp);
         values.put(Document.COLUMN_FLAGS, getDocumentFlags(
-                device.operationsSupported,
+                device.capabilities,
                 Document.MIME_TYPE_DIR,
                 0,
                 MtpConstants.PROTECTION_STATUS_NONE,
@@ -774,7 +1023,7 @@ class MtpDatabase {
         values.putNull(Document.COLUMN_SIZE);
 
         extraValues.clear();
-        extraValues.put(Root.COLUMN_FLAGS, getRootFlags(device.operationsSupported));
+        extraValues.put(Root.COLUMN_FLAGS, getRootFlags(device.capabilities));
         extraValues.putNull(Root.COLUMN_AVAILABLE_BYTES);
         extraValues.putNull(Root.COLUMN_CAPACITY_BYTES);
         extraValues.put(Root.COLUMN_MIME_TYPES, "");
@@ -785,14 +1034,14 @@ class MtpDatabase {
      * @param values {@link ContentValues} that receives values.
      * @param extraValues {@link ContentValues} that receives extra values for roots.
      * @param parentDocumentId Parent document ID.
-     * @param operationsSupported Array of Operation code supported by the device.
+     * @param capabilities Capabilities of the device. See {@link MtpDeviceRecord#capabilities}.
      * @param root Root to be converted {@link ContentValues}.
      */
     static void getStorageDocumentValues(
             ContentValues values,
             ContentValues extraValues,
             String parentDocumentId,
-            int[] operationsSupported,
+            int capabilities,
             MtpRoot root) {
         values.clear();
         values.put(COLUMN_DEVICE_ID, root.mDeviceId);
@@ -807,52 +1056,151 @@ class MtpDatabase {
         values.putNull(Document.COLUMN_LAST_MODIFIED);
         values.put(Document.COLUMN_ICON, R.drawable.ic_root_mtp);
         values.put(Document.COLUMN_FLAGS, getDocumentFlags(
-                operationsSupported,
+                capabilities,
                 Document.MIME_TYPE_DIR,
                 0,
                 MtpConstants.PROTECTION_STATUS_NONE,
                 DOCUMENT_TYPE_STORAGE));
         values.put(Document.COLUMN_SIZE, root.mMaxCapacity - root.mFreeSpace);
 
-        extraValues.put(Root.COLUMN_FLAGS, getRootFlags(operationsSupported));
+        extraValues.put(Root.COLUMN_FLAGS, getRootFlags(capabilities));
         extraValues.put(Root.COLUMN_AVAILABLE_BYTES, root.mFreeSpace);
         extraValues.put(Root.COLUMN_CAPACITY_BYTES, root.mMaxCapacity);
         extraValues.put(Root.COLUMN_MIME_TYPES, "");
     }
 
+    /**
+     * Columns of an object document written by {@link #writeObjectColumns}, in the order of the
+     * column indexes.
+     */
+    static final String[] OBJECT_COLUMNS = new String[] {
+            COLUMN_DEVICE_ID,
+            COLUMN_STORAGE_ID,
+            COLUMN_OBJECT_HANDLE,
+            COLUMN_PARENT_DOCUMENT_ID,
+            COLUMN_ROW_STATE,
+            COLUMN_DOCUMENT_TYPE,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_SUMMARY,
+            Document.COLUMN_LAST_MODIFIED,
+            Document.COLUMN_ICON,
+            Document.COLUMN_FLAGS,
+            Document.COLUMN_SIZE
+    };
+
+    /**
+     * Receives the column values of an object document.
+     * Indexes are positions in {@link #OBJECT_COLUMNS}.
+     */
+    interface ObjectColumnWriter {
+        void putLong(int index, long value);
+        void putString(int index, String value);
+        void putNull(int index);
+    }
+
+    /**
+     * Returns a writer that puts the column values to {@link ContentValues} by column name.
+     */
+    static ObjectColumnWriter createObjectColumnWriter(final ContentValues values) {
+        return new ObjectColumnWriter() {
+            @Override
+            public void putLong(int index, long value) {
+                values.put(OBJECT_COLUMNS[index], value);
+            }
+
+            @Override
+            public void putString(int index, String value) {
+                values.put(OBJECT_COLUMNS[index], value);
+            }
+
+            @Override
+            public void putNull(int index) {
+                values.putNull(OBJECT_COLUMNS[index]);
+            }
+        };
+    }
+
+    /**
+     * Returns a writer that binds the column values to the statement whose first parameters are
+     * {@link #OBJECT_COLUMNS}.
+     */
+    static ObjectColumnWriter createObjectColumnWriter(final SQLiteStatement statement) {
+        return new ObjectColumnWriter() {
+            @Override
+            public void putLong(int index, long value) {
+                statement.bindLong(index + 1, value);
+            }
+
+            @Override
+            public void putString(int index, String value) {
+                statement.bindString(index + 1, value);
+            }
+
+            @Override
+            public void putNull(int index) {
+                statement.bindNull(index + 1);
+            }
+        };
+    }
+
     /**
      * Gets {@link ContentValues} for the given MTP object.
      * @param values {@link ContentValues} that receives values.
      * @param deviceId Device ID of the object.
      * @param parentId Parent document ID of the object.
+     * @param capabilities Capabilities of the device. See {@link MtpDeviceRecord#capabilities}.
      * @param info MTP object info. getCompressedSize will be ignored.
      * @param size 64-bit size of documents. Negative value is regarded as unknown size.
      */
     static void getObjectDocumentValues(
             ContentValues values, int deviceId, String parentId,
-            int[] operationsSupported, MtpObjectInfo info, long size) {
+            int capabilities, MtpObjectInfo info, long size) {
         values.clear();
-        final String mimeType = getMimeType(info);
-        values.put(COLUMN_DEVICE_ID, deviceId);
-        values.put(COLUMN_STORAGE_ID, info.getStorageId());
-        values.put(COLUMN_OBJECT_HANDLE, info.getObjectHandle());
-        values.put(COLUMN_PARENT_DOCUMENT_ID, parentId);
-        values.put(COLUMN_ROW_STATE, ROW_STATE_VALID);
-        values.put(COLUMN_DOCUMENT_TYPE, DOCUMENT_TYPE_OBJECT);
-        values.put(Document.COLUMN_MIME_TYPE, mimeType);
-        values.put(Document.COLUMN_DISPLAY_NAME, info.getName());
-        values.putNull(Document.COLUMN_SUMMARY);
-        values.put(
-                Document.COLUMN_LAST_MODIFIED,
-                info.getDateModified() != 0 ? info.getDateModified() : null);
-        values.putNull(Document.COLUMN_ICON);
-        values.put(Document.COLUMN_FLAGS, getDocumentFlags(
-                operationsSupported, mimeType, info.getThumbCompressedSizeLong(),
+        writeObjectColumns(
+                createObjectColumnWriter(values), deviceId, parentId, capabilities, info,
+                getMimeType(info), size);
+    }
+
+    /**
+     * Writes the values of {@link #OBJECT_COLUMNS} for the given MTP object.
+     * @param writer Writer that receives values.
+     * @param deviceId Device ID of the object.
+     * @param parentId Parent document ID of the object.
+     * @param capabilities Capabilities of the device. See {@link MtpDeviceRecord#capabilities}.
+     * @param info MTP object info. getCompressedSize will be ignored.
+     * @param mimeType MIME type of the object.
+     * @param size 64-bit size of documents. Negative value is regarded as unknown size.
+     */
+    static void writeObjectColumns(
+            ObjectColumnWriter writer, int deviceId, String parentId, int capabilities,
+            MtpObjectInfo info, String mimeType, long size) {
+        writer.putLong(0, deviceId);
+        writer.putLong(1, info.getStorageId());
+        writer.putLong(2, info.getObjectHandle());
+        writer.putString(3, parentId);
+        writer.putLong(4, ROW_STATE_VALID);
+        writer.putLong(5, DOCUMENT_TYPE_OBJECT);
+        writer.putString(6, mimeType);
+        if (info.getName() != null) {
+            writer.putString(7, info.getName());
+        } else {
+            writer.putNull(7);
+        }
+        writer.putNull(8);
+        if (info.getDateModified() != 0) {
+            writer.putLong(9, info.getDateModified());
+        } else {
+            writer.putNull(9);
+        }
+        writer.putNull(10);
+        writer.putLong(11, getDocumentFlags(
+                capabilities, mimeType, info.getThumbCompressedSizeLong(),
                 info.getProtectionStatus(), DOCUMENT_TYPE_OBJECT));
         if (size >= 0) {
-            values.put(Document.COLUMN_SIZE, size);
+            writer.putLong(12, size);
         } else {
-            values.putNull(Document.COLUMN_SIZE);
+            writer.putNull(12);
         }
     }
 
@@ -864,32 +1212,32 @@ class MtpDatabase {
         return MediaFile.getMimeType(info.getName(), info.getFormat());
     }
 
-    private static int getRootFlags(int[] operationsSupported) {
+    private static int getRootFlags(int capabilities) {
         int rootFlag = Root.FLAG_SUPPORTS_IS_CHILD | Root.FLAG_LOCAL_ONLY;
-        if (MtpDeviceRecord.isWritingSupported(operationsSupported)) {
+        if (MtpDeviceRecord.isWritingSupported(capabilities)) {
             rootFlag |= Root.FLAG_SUPPORTS_CREATE;
         }
         return rootFlag;
     }
 
-    private static int getDocumentFlags(
-            @Nullable int[] operationsSupported, String mimeType, long thumbnailSize,
+    static int getDocumentFlags(
+            int capabilities, String mimeType, long thumbnailSize,
             int protectionState, @DocumentType int documentType) {
         int flag = 0;
         if (!mimeType.equals(Document.MIME_TYPE_DIR) &&
-                MtpDeviceRecord.isWritingSupported(operationsSupported) &&
+                MtpDeviceRecord.isWritingSupported(capabilities) &&
                 protectionState == MtpConstants.PROTECTION_STATUS_NONE) {
             flag |= Document.FLAG_SUPPORTS_WRITE;
         }
-        if (MtpDeviceRecord.isSupported(
-                operationsSupported, MtpConstants.OPERATION_DELETE_OBJECT) &&
+        if (MtpDeviceRecord.hasCapabilities(
+                capabilities, MtpDeviceRecord.CAPABILITY_DELETE_OBJECT) &&
                 (protectionState == MtpConstants.PROTECTION_STATUS_NONE ||
                  protectionState == MtpConstants.PROTECTION_STATUS_NON_TRANSFERABLE_DATA) &&
                 documentType == DOCUMENT_TYPE_OBJECT) {
             flag |= Document.FLAG_SUPPORTS_DELETE;
         }
         if (mimeType.equals(Document.MIME_TYPE_DIR) &&
-                MtpDeviceRecord.isWritingSupported(operationsSupported) &&
+                MtpDeviceRecord.isWritingSupported(capabilities) &&
                 protectionState == MtpConstants.PROTECTION_STATUS_NONE) {
             flag |= Document.FLAG_DIR_SUPPORTS_CREATE;
         }
@@ -916,16 +1264,4 @@ class MtpDatabase {
             row.add(values.get(name));
         }
     }
-
-    private static String getIdList(Set<String> ids) {
-        String result = "(";
-        for (final String id : ids) {
-            if (result.length() > 1) {
-                result += ",";
-            }
-            result += id;
-        }
-        result += ")";
-        return result;
-    }
 }
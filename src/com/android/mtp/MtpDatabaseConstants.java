@@ -30,7 +30,7 @@ import java.util.Map;
  * Class containing MtpDatabase constants.
  */
 class MtpDatabaseConstants {
-    static final int DATABASE_VERSION = 5;
+    static final int DATABASE_VERSION = 7;
     static final String DATABASE_NAME = "database";
 
     static final int FLAG_DATABASE_IN_MEMORY = 1;
@@ -52,6 +52,32 @@ class MtpDatabaseConstants {
      */
     static final String TABLE_LAST_BOOT_COUNT = "LastBootCount";
 
+    /**
+     * Append-only journal of document changes filled by triggers on TABLE_DOCUMENTS.
+     */
+    static final String TABLE_CHANGES = "Changes";
+
+    /**
+     * Maximum number of changes kept in TABLE_CHANGES. Older changes are compacted away.
+     */
+    static final int MAX_CHANGES = 10000;
+
+    /**
+     * Table of documents that have disconnected children, maintained by triggers on
+     * TABLE_DOCUMENTS so that the next document to be remapped is found without a join.
+     */
+    static final String TABLE_PENDING_PARENTS = "PendingParents";
+
+    /**
+     * Temporary table of documents kept by the boot cleanup.
+     */
+    static final String TABLE_PROTECTED_DOCUMENTS = "ProtectedDocuments";
+
+    /**
+     * Number of documents examined in a transaction of the boot cleanup.
+     */
+    static final int NUM_CLEANING_DOCUMENTS = 500;
+
     /**
      * 'FROM' closure of joining TABLE_DOCUMENTS and TABLE_ROOT_EXTRA.
      */
@@ -75,6 +101,22 @@ class MtpDatabaseConstants {
      */
     static final String COLUMN_VALUE = "value";
 
+    /**
+     * Monotonically increasing sequence number of TABLE_CHANGES.
+     * Type: INTEGER
+     */
+    static final String COLUMN_SEQUENCE = "sequence";
+
+    /**
+     * Type of change in TABLE_CHANGES.
+     * Type: INTEGER
+     */
+    static final String COLUMN_CHANGE_TYPE = "change_type";
+
+    static final int CHANGE_TYPE_ADDED = 0;
+    static final int CHANGE_TYPE_UPDATED = 1;
+    static final int CHANGE_TYPE_DELETED = 2;
+
     /**
      * The state represents that the row has a valid object handle.
      */
@@ -147,6 +189,138 @@ class MtpDatabaseConstants {
     static final String QUERY_CREATE_LAST_BOOT_COUNT =
             "CREATE TABLE " + TABLE_LAST_BOOT_COUNT + " (value INTEGER NOT NULL);";
 
+    static final String QUERY_CREATE_CHANGES =
+            "CREATE TABLE " + TABLE_CHANGES + " (" +
+            COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            Document.COLUMN_DOCUMENT_ID + " INTEGER NOT NULL," +
+            COLUMN_PARENT_DOCUMENT_ID + " INTEGER," +
+            COLUMN_CHANGE_TYPE + " INTEGER NOT NULL);";
+
+    static final String QUERY_CREATE_PENDING_PARENTS =
+            "CREATE TABLE " + TABLE_PENDING_PARENTS + " (" +
+            Document.COLUMN_DOCUMENT_ID + " INTEGER PRIMARY KEY," +
+            COLUMN_DEVICE_ID + " INTEGER NOT NULL);";
+
+    static final String QUERY_CREATE_INDEX_PENDING_PARENTS_DEVICE =
+            "CREATE INDEX PendingParentsDevice ON " + TABLE_PENDING_PARENTS + " (" +
+            COLUMN_DEVICE_ID + ");";
+
+    /**
+     * Index for child listings, mapping and the disconnected children of TABLE_PENDING_PARENTS.
+     */
+    static final String QUERY_CREATE_INDEX_DOCUMENTS_PARENT =
+            "CREATE INDEX DocumentsParent ON " + TABLE_DOCUMENTS + " (" +
+            COLUMN_PARENT_DOCUMENT_ID + ", " + COLUMN_ROW_STATE + ");";
+
+    static final String QUERY_CREATE_TRIGGER_PENDING_PARENT_ADDED =
+            "CREATE TRIGGER PendingParentAdded AFTER INSERT ON " + TABLE_DOCUMENTS + " BEGIN " +
+            createAddPendingParentStatement() + " END;";
+
+    static final String QUERY_CREATE_TRIGGER_PENDING_PARENT_UPDATED =
+            "CREATE TRIGGER PendingParentUpdated AFTER UPDATE OF " +
+            COLUMN_ROW_STATE + ", " + COLUMN_PARENT_DOCUMENT_ID + " ON " + TABLE_DOCUMENTS +
+            " BEGIN " +
+            createRemovePendingParentStatement() +
+            createAddPendingParentStatement() + " END;";
+
+    static final String QUERY_CREATE_TRIGGER_PENDING_PARENT_DELETED =
+            "CREATE TRIGGER PendingParentDeleted AFTER DELETE ON " + TABLE_DOCUMENTS + " BEGIN " +
+            "DELETE FROM " + TABLE_PENDING_PARENTS + " WHERE " +
+                    Document.COLUMN_DOCUMENT_ID + " = OLD." + Document.COLUMN_DOCUMENT_ID + ";" +
+            createRemovePendingParentStatement() + " END;";
+
+    static final String QUERY_CREATE_TRIGGER_DOCUMENT_ADDED =
+            "CREATE TRIGGER DocumentAdded AFTER INSERT ON " + TABLE_DOCUMENTS + " BEGIN " +
+            createJournalStatement("NEW", CHANGE_TYPE_ADDED) + " END;";
+
+    /**
+     * Records updates of the columns visible to clients. Rows are updated with the same values
+     * every time the children are reloaded, and they are not recorded.
+     */
+    static final String QUERY_CREATE_TRIGGER_DOCUMENT_UPDATED =
+            "CREATE TRIGGER DocumentUpdated AFTER UPDATE ON " + TABLE_DOCUMENTS + " WHEN " +
+            "OLD." + Document.COLUMN_DISPLAY_NAME + " IS NOT NEW." +
+                    Document.COLUMN_DISPLAY_NAME + " OR " +
+            "OLD." + Document.COLUMN_MIME_TYPE + " IS NOT NEW." +
+                    Document.COLUMN_MIME_TYPE + " OR " +
+            "OLD." + Document.COLUMN_SIZE + " IS NOT NEW." + Document.COLUMN_SIZE + " OR " +
+            "OLD." + Document.COLUMN_LAST_MODIFIED + " IS NOT NEW." +
+                    Document.COLUMN_LAST_MODIFIED + " OR " +
+            "OLD." + Document.COLUMN_FLAGS + " IS NOT NEW." + Document.COLUMN_FLAGS +
+            " BEGIN " + createJournalStatement("NEW", CHANGE_TYPE_UPDATED) + " END;";
+
+    static final String QUERY_CREATE_TRIGGER_DOCUMENT_DELETED =
+            "CREATE TRIGGER DocumentDeleted AFTER DELETE ON " + TABLE_DOCUMENTS + " BEGIN " +
+            createJournalStatement("OLD", CHANGE_TYPE_DELETED) + " END;";
+
+    static final String QUERY_CREATE_TRIGGER_COMPACT_CHANGES =
+            "CREATE TRIGGER CompactChanges AFTER INSERT ON " + TABLE_CHANGES + " BEGIN " +
+            "DELETE FROM " + TABLE_CHANGES + " WHERE " +
+            COLUMN_SEQUENCE + " <= NEW." + COLUMN_SEQUENCE + " - " + MAX_CHANGES + "; END;";
+
+    /**
+     * Selects a document and its ancestors from the document to the device with the number of
+     * storages for the device. The argument is the document ID.
+     */
+    static final String QUERY_ANCESTORS =
+            "WITH RECURSIVE Ancestors(" +
+                    Document.COLUMN_DOCUMENT_ID + ", " +
+                    COLUMN_PARENT_DOCUMENT_ID + ", " +
+                    COLUMN_DEVICE_ID + ", " +
+                    COLUMN_STORAGE_ID + ", " +
+                    COLUMN_OBJECT_HANDLE + ", " +
+                    COLUMN_DOCUMENT_TYPE + ", " +
+                    COLUMN_ROW_STATE + ", depth) AS (" +
+            "SELECT " +
+                    Document.COLUMN_DOCUMENT_ID + ", " +
+                    COLUMN_PARENT_DOCUMENT_ID + ", " +
+                    COLUMN_DEVICE_ID + ", " +
+                    COLUMN_STORAGE_ID + ", " +
+                    COLUMN_OBJECT_HANDLE + ", " +
+                    COLUMN_DOCUMENT_TYPE + ", " +
+                    COLUMN_ROW_STATE + ", 0 " +
+            "FROM " + TABLE_DOCUMENTS + " WHERE " + Document.COLUMN_DOCUMENT_ID + " = ? " +
+            "UNION ALL " +
+            "SELECT " +
+                    "Parent." + Document.COLUMN_DOCUMENT_ID + ", " +
+                    "Parent." + COLUMN_PARENT_DOCUMENT_ID + ", " +
+                    "Parent." + COLUMN_DEVICE_ID + ", " +
+                    "Parent." + COLUMN_STORAGE_ID + ", " +
+                    "Parent." + COLUMN_OBJECT_HANDLE + ", " +
+                    "Parent." + COLUMN_DOCUMENT_TYPE + ", " +
+                    "Parent." + COLUMN_ROW_STATE + ", " +
+                    "Ancestors.depth + 1 " +
+            "FROM " + TABLE_DOCUMENTS + " AS Parent JOIN Ancestors " +
+            "ON Parent." + Document.COLUMN_DOCUMENT_ID + " = " +
+                    "Ancestors." + COLUMN_PARENT_DOCUMENT_ID + ") " +
+            "SELECT " +
+                    COLUMN_DEVICE_ID + ", " +
+                    COLUMN_STORAGE_ID + ", " +
+                    COLUMN_OBJECT_HANDLE + ", " +
+                    Document.COLUMN_DOCUMENT_ID + ", " +
+                    COLUMN_DOCUMENT_TYPE + ", " +
+                    COLUMN_ROW_STATE + ", " +
+                    "CASE WHEN " + COLUMN_DOCUMENT_TYPE + " = " + DOCUMENT_TYPE_DEVICE + " THEN (" +
+                    "SELECT COUNT(*) FROM " + TABLE_DOCUMENTS + " AS Storage WHERE " +
+                    "Storage." + COLUMN_PARENT_DOCUMENT_ID + " = " +
+                            "Ancestors." + Document.COLUMN_DOCUMENT_ID + " AND " +
+                    "Storage." + COLUMN_DOCUMENT_TYPE + " = " + DOCUMENT_TYPE_STORAGE + " AND " +
+                    "Storage." + COLUMN_ROW_STATE + " IN (" +
+                            ROW_STATE_VALID + ", " + ROW_STATE_INVALIDATED + ")" +
+                    ") ELSE 0 END " +
+            "FROM Ancestors ORDER BY depth";
+
+    static final String QUERY_CREATE_PROTECTED_DOCUMENTS =
+            "CREATE TEMP TABLE IF NOT EXISTS " + TABLE_PROTECTED_DOCUMENTS + " (" +
+            Document.COLUMN_DOCUMENT_ID + " INTEGER PRIMARY KEY);";
+
+    /**
+     * Protects a document and its ancestors. The argument is the document ID.
+     */
+    static final String QUERY_PROTECT_ANCESTORS =
+            "INSERT OR IGNORE INTO " + TABLE_PROTECTED_DOCUMENTS + " SELECT " +
+            Document.COLUMN_DOCUMENT_ID + " FROM (" + QUERY_ANCESTORS + ")";
+
     /**
      * Map for columns names to provide DocumentContract.Root compatible columns.
      * @see SQLiteQueryBuilder#setProjectionMap(Map)
@@ -178,6 +352,40 @@ class MtpDatabaseConstants {
         COLUMN_MAP_ROOTS.put(COLUMN_DEVICE_ID, COLUMN_DEVICE_ID);
     }
 
+    private static String createJournalStatement(String row, int changeType) {
+        return "INSERT INTO " + TABLE_CHANGES + " (" +
+                Document.COLUMN_DOCUMENT_ID + ", " +
+                COLUMN_PARENT_DOCUMENT_ID + ", " +
+                COLUMN_CHANGE_TYPE + ") VALUES (" +
+                row + "." + Document.COLUMN_DOCUMENT_ID + ", " +
+                row + "." + COLUMN_PARENT_DOCUMENT_ID + ", " +
+                changeType + ");";
+    }
+
+    /**
+     * Adds the parent of the new row to TABLE_PENDING_PARENTS if the row is disconnected.
+     */
+    private static String createAddPendingParentStatement() {
+        return "INSERT OR IGNORE INTO " + TABLE_PENDING_PARENTS + " (" +
+                Document.COLUMN_DOCUMENT_ID + ", " + COLUMN_DEVICE_ID + ") " +
+                "SELECT NEW." + COLUMN_PARENT_DOCUMENT_ID + ", NEW." + COLUMN_DEVICE_ID + " " +
+                "WHERE NEW." + COLUMN_ROW_STATE + " = " + ROW_STATE_DISCONNECTED + " AND " +
+                "NEW." + COLUMN_PARENT_DOCUMENT_ID + " IS NOT NULL;";
+    }
+
+    /**
+     * Removes the parent of the old row from TABLE_PENDING_PARENTS if the old row was
+     * disconnected and the parent no longer has disconnected children.
+     */
+    private static String createRemovePendingParentStatement() {
+        return "DELETE FROM " + TABLE_PENDING_PARENTS + " WHERE " +
+                "OLD." + COLUMN_ROW_STATE + " = " + ROW_STATE_DISCONNECTED + " AND " +
+                Document.COLUMN_DOCUMENT_ID + " = OLD." + COLUMN_PARENT_DOCUMENT_ID + " AND " +
+                "NOT EXISTS (SELECT 1 FROM " + TABLE_DOCUMENTS + " WHERE " +
+                        COLUMN_PARENT_DOCUMENT_ID + " = OLD." + COLUMN_PARENT_DOCUMENT_ID +
+                        " AND " + COLUMN_ROW_STATE + " = " + ROW_STATE_DISCONNECTED + ");";
+    }
+
     private static String createJoinFromClosure(
             String table1, String table2, String column1, String column2) {
         return table1 + " LEFT JOIN " + table2 +
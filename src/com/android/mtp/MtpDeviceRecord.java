@@ -20,6 +20,31 @@ import android.annotation.Nullable;
 import android.mtp.MtpConstants;
 
 class MtpDeviceRecord {
+    /**
+     * Bits of capabilities resolved from the supported operations.
+     */
+    static final int CAPABILITY_GET_PARTIAL_OBJECT = 1 << 0;
+    static final int CAPABILITY_GET_PARTIAL_OBJECT_64 = 1 << 1;
+    static final int CAPABILITY_SEND_OBJECT_INFO = 1 << 2;
+    static final int CAPABILITY_SEND_OBJECT = 1 << 3;
+    static final int CAPABILITY_DELETE_OBJECT = 1 << 4;
+    static final int CAPABILITY_GET_OBJECT_PROP_DESC = 1 << 5;
+    static final int CAPABILITY_GET_OBJECT_PROP_VALUE = 1 << 6;
+    static final int CAPABILITY_WRITE = CAPABILITY_SEND_OBJECT_INFO | CAPABILITY_SEND_OBJECT;
+
+    /**
+     * Operations corresponding to the capability bits in the order of bits.
+     */
+    private static final int[] CAPABILITY_OPERATIONS = new int[] {
+            MtpConstants.OPERATION_GET_PARTIAL_OBJECT,
+            MtpConstants.OPERATION_GET_PARTIAL_OBJECT_64,
+            MtpConstants.OPERATION_SEND_OBJECT_INFO,
+            MtpConstants.OPERATION_SEND_OBJECT,
+            MtpConstants.OPERATION_DELETE_OBJECT,
+            MtpConstants.OPERATION_GET_OBJECT_PROP_DESC,
+            MtpConstants.OPERATION_GET_OBJECT_PROP_VALUE
+    };
+
     public final int deviceId;
     public final String name;
     public final @Nullable String deviceKey;
@@ -27,6 +52,7 @@ class MtpDeviceRecord {
     public final MtpRoot[] roots;
     public final @Nullable int[] operationsSupported;
     public final @Nullable int[] eventsSupported;
+    public final int capabilities;
 
     MtpDeviceRecord(int deviceId, String name, @Nullable String deviceKey, boolean opened,
                     MtpRoot[] roots, @Nullable int[] operationsSupported,
@@ -38,6 +64,24 @@ class MtpDeviceRecord {
         this.deviceKey = deviceKey;
         this.operationsSupported = operationsSupported;
         this.eventsSupported = eventsSupported;
+        this.capabilities = getCapabilities(operationsSupported);
+    }
+
+    /**
+     * Resolves capability bits from the supported operations.
+     */
+    static int getCapabilities(@Nullable int[] operationsSupported) {
+        int capabilities = 0;
+        for (int i = 0; i < CAPABILITY_OPERATIONS.length; i++) {
+            if (isSupported(operationsSupported, CAPABILITY_OPERATIONS[i])) {
+                capabilities |= 1 << i;
+            }
+        }
+        return capabilities;
+    }
+
+    static boolean hasCapabilities(int capabilities, int requiredCapabilities) {
+        return (capabilities & requiredCapabilities) == requiredCapabilities;
     }
 
     /**
@@ -55,6 +99,10 @@ class MtpDeviceRecord {
         return false;
     }
 
+    /**
+     * Checks the operations directly for callers without {@link #capabilities}. Callers with a
+     * device record should use {@link #isPartialReadSupported(int, long)} instead.
+     */
     static boolean isPartialReadSupported(@Nullable int[] supportedList, long fileSize) {
         if (isSupported(supportedList, MtpConstants.OPERATION_GET_PARTIAL_OBJECT_64)) {
             return true;
@@ -67,8 +115,28 @@ class MtpDeviceRecord {
         return false;
     }
 
+    static boolean isPartialReadSupported(int capabilities, long fileSize) {
+        if (hasCapabilities(capabilities, CAPABILITY_GET_PARTIAL_OBJECT_64)) {
+            return true;
+        }
+        if (0 <= fileSize &&
+                fileSize <= 0xffffffffL &&
+                hasCapabilities(capabilities, CAPABILITY_GET_PARTIAL_OBJECT)) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks the operations directly for callers without {@link #capabilities}. Callers with a
+     * device record should use {@link #isWritingSupported(int)} instead.
+     */
     static boolean isWritingSupported(@Nullable int[] supportedList) {
         return isSupported(supportedList, MtpConstants.OPERATION_SEND_OBJECT_INFO) &&
                 isSupported(supportedList, MtpConstants.OPERATION_SEND_OBJECT);
     }
+
+    static boolean isWritingSupported(int capabilities) {
+        return hasCapabilities(capabilities, CAPABILITY_WRITE);
+    }
 }
@@ -35,8 +35,13 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.FileUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.ProxyFileDescriptorCallback;
+import android.os.SystemClock;
 import android.os.storage.StorageManager;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
@@ -48,20 +53,32 @@ import android.provider.Settings;
 import android.system.ErrnoException;
 import android.system.OsConstants;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import libcore.io.IoUtils;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * DocumentsProvider for MTP devices.
@@ -69,6 +86,59 @@ import java.util.concurrent.TimeoutException;
 public class MtpDocumentsProvider extends DocumentsProvider {
     static final String AUTHORITY = "com.android.mtp.documents";
     static final String TAG = "MtpDocumentsProvider";
+
+    /**
+     * Method of {@link #call} to declare the size of the content that the caller is going to write
+     * to the document given as the argument. The size is passed with {@link #EXTRA_SIZE} and
+     * applies to the next opening of the document in "w" mode.
+     */
+    static final String METHOD_DECLARE_SIZE = "com.android.mtp.DECLARE_SIZE";
+    static final String EXTRA_SIZE = "com.android.mtp.extra.SIZE";
+
+    /**
+     * Method of {@link #call} to delete the documents passed with {@link #EXTRA_DOCUMENT_IDS}.
+     * The result contains the IDs of deleted documents in {@link #EXTRA_DOCUMENT_IDS}.
+     */
+    static final String METHOD_DELETE_DOCUMENTS = "com.android.mtp.DELETE_DOCUMENTS";
+    static final String EXTRA_DOCUMENT_IDS = "com.android.mtp.extra.DOCUMENT_IDS";
+
+    /**
+     * Method of {@link #call} to query the columns given by {@link #EXTRA_PROJECTION} of the
+     * documents passed with {@link #EXTRA_DOCUMENT_IDS}, starting from {@link #EXTRA_START_INDEX}.
+     * The result contains IDs of found documents in {@link #EXTRA_DOCUMENT_IDS}, a column array
+     * for each projection column keyed by the column name, and the index to pass with the next
+     * call in {@link #EXTRA_NEXT_INDEX}, or -1 if all documents are queried. A column is stored
+     * as long[] if all its values are integers, and as String[] otherwise.
+     */
+    static final String METHOD_QUERY_DOCUMENTS = "com.android.mtp.QUERY_DOCUMENTS";
+    static final String EXTRA_PROJECTION = "com.android.mtp.extra.PROJECTION";
+    static final String EXTRA_START_INDEX = "com.android.mtp.extra.START_INDEX";
+    static final String EXTRA_NEXT_INDEX = "com.android.mtp.extra.NEXT_INDEX";
+
+    /**
+     * Method of {@link #call} to get changes of documents after the token passed with
+     * {@link #EXTRA_TOKEN}. The result contains changed document IDs in
+     * {@link #EXTRA_DOCUMENT_IDS}, their parent document IDs in {@link #EXTRA_PARENT_DOCUMENT_IDS},
+     * the types of changes in {@link #EXTRA_CHANGE_TYPES}, and the token to pass with the next call
+     * in {@link #EXTRA_TOKEN}. {@link #EXTRA_HAS_MORE} is true if more changes follow. If
+     * {@link #EXTRA_RESET} is true, the token is too old or unknown and the client needs to
+     * rescan documents before using the new token.
+     * @see MtpDatabaseConstants#CHANGE_TYPE_ADDED
+     * @see MtpDatabaseConstants#CHANGE_TYPE_UPDATED
+     * @see MtpDatabaseConstants#CHANGE_TYPE_DELETED
+     */
+    static final String METHOD_GET_CHANGES = "com.android.mtp.GET_CHANGES";
+    static final String EXTRA_TOKEN = "com.android.mtp.extra.TOKEN";
+    static final String EXTRA_PARENT_DOCUMENT_IDS = "com.android.mtp.extra.PARENT_DOCUMENT_IDS";
+    static final String EXTRA_CHANGE_TYPES = "com.android.mtp.extra.CHANGE_TYPES";
+    static final String EXTRA_HAS_MORE = "com.android.mtp.extra.HAS_MORE";
+    static final String EXTRA_RESET = "com.android.mtp.extra.RESET";
+
+    /**
+     * Method of {@link #call} to load all documents under the storage document given as the
+     * argument in background.
+     */
+    static final String METHOD_INDEX_STORAGE = "com.android.mtp.INDEX_STORAGE";
     static final String[] DEFAULT_ROOT_PROJECTION = new String[] {
             Root.COLUMN_ROOT_ID, Root.COLUMN_FLAGS, Root.COLUMN_ICON,
             Root.COLUMN_TITLE, Root.COLUMN_DOCUMENT_ID,
@@ -82,6 +152,60 @@ public class MtpDocumentsProvider extends DocumentsProvider {
 
     static final boolean DEBUG = false;
 
+    /**
+     * Directory under the cache directory where BlockCache spills blocks.
+     */
+    private static final String BLOCK_CACHE_DIRECTORY = "blocks";
+
+    /**
+     * Directory under the cache directory where documents are spooled for devices that do not
+     * support partial reading.
+     */
+    private static final String SPOOL_DIRECTORY = "spool";
+
+    /**
+     * Directory under the cache directory where thumbnails are cached.
+     */
+    private static final String THUMBNAIL_CACHE_DIRECTORY = "thumbnails";
+
+    /**
+     * Minimum interval between uploads triggered by fsync on descriptors opened with
+     * {@link #MODE_DEFERRED_SYNC}. Fsync requests within the interval are coalesced into a single
+     * upload at the end of the interval.
+     */
+    private static final long FSYNC_WINDOW_MS = 5000;
+
+    /**
+     * Character appended to the mode of {@link #openDocument} to coalesce uploads triggered by
+     * fsync. Fsync on such descriptors may return before the content reaches the device, and a
+     * failure of the deferred upload is reported by the next fsync.
+     */
+    static final char MODE_DEFERRED_SYNC = 'd';
+
+    /**
+     * Maximum suffix number appended to a display name to avoid conflicts.
+     */
+    private static final int MAX_NAME_SUFFIX = 32;
+
+    /**
+     * Maximum number of documents returned by a single METHOD_QUERY_DOCUMENTS call, so that the
+     * result stays well within the Binder transaction limit.
+     */
+    @VisibleForTesting
+    static final int MAX_QUERY_DOCUMENTS = 500;
+
+    /**
+     * Maximum number of changes returned by a single METHOD_GET_CHANGES call.
+     */
+    @VisibleForTesting
+    static final int MAX_CHANGES_PER_CALL = 500;
+
+    /**
+     * Maximum number of sizes declared by METHOD_DECLARE_SIZE and not taken by openDocument yet.
+     * The eldest declaration is dropped when a new one exceeds the limit.
+     */
+    private static final int MAX_DECLARED_SIZES = 64;
+
     private final Object mDeviceListLock = new Object();
 
     private static MtpDocumentsProvider sSingleton;
@@ -96,6 +220,18 @@ public class MtpDocumentsProvider extends DocumentsProvider {
     private ServiceIntentSender mIntentSender;
     private Context mContext;
     private StorageManager mStorageManager;
+    private BlockCache mBlockCache;
+    private ThumbnailCache mThumbnailCache;
+    private @Nullable Thread mDatabaseCleaner;
+    private final AtomicLong mUploadCount = new AtomicLong();
+    private final AtomicLong mAvoidedUploadCount = new AtomicLong();
+    @GuardedBy("mDeclaredSizes")
+    private final Map<String, Long> mDeclaredSizes = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_DECLARED_SIZES;
+        }
+    };
 
     /**
      * Provides singleton instance to MtpDocumentsService.
@@ -116,36 +252,61 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         mRootScanner = new RootScanner(mResolver, mMtpManager, mDatabase);
         mIntentSender = new ServiceIntentSender(getContext());
         mStorageManager = getContext().getSystemService(StorageManager.class);
+        mBlockCache = new BlockCache(new File(getContext().getCacheDir(), BLOCK_CACHE_DIRECTORY));
+        mThumbnailCache = new ThumbnailCache(
+                new File(getContext().getCacheDir(), THUMBNAIL_CACHE_DIRECTORY));
+
+        resume();
 
         // Check boot count and cleans database if it's first time to launch MtpDocumentsProvider
-        // after booting.
+        // after booting. The cleanup runs after resume() disconnects all documents, and removes
+        // only documents that are still disconnected.
         try {
             final int bootCount = Settings.Global.getInt(mResolver, Settings.Global.BOOT_COUNT, -1);
             final int lastBootCount = mDatabase.getLastBootCount();
             if (bootCount != -1 && bootCount != lastBootCount) {
-                mDatabase.setLastBootCount(bootCount);
-                final List<UriPermission> permissions =
-                        mResolver.getOutgoingPersistedUriPermissions();
-                final Uri[] uris = new Uri[permissions.size()];
-                for (int i = 0; i < permissions.size(); i++) {
-                    uris[i] = permissions.get(i).getUri();
-                }
-                mDatabase.cleanDatabase(uris);
+                mDatabaseCleaner = createDatabaseCleaner(bootCount);
+                mDatabaseCleaner.start();
             }
         } catch (SQLiteDiskIOException error) {
             // It can happen due to disk shortage.
-            Log.e(TAG, "Failed to clean database.", error);
-            return false;
-        } catch (SecurityException exSec) {
-            // For UriPermission.
-            Log.w(TAG, "SecurityException:", exSec);
+            Log.e(TAG, "Failed to read boot count.", error);
             return false;
         }
-
-        resume();
         return true;
     }
 
+    /**
+     * Creates a thread that cleans the database in background, and records the boot count when
+     * the cleanup completes.
+     */
+    private Thread createDatabaseCleaner(final int bootCount) {
+        return new Thread("MtpDatabaseCleaner") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    final List<UriPermission> permissions =
+                            mResolver.getOutgoingPersistedUriPermissions();
+                    final Uri[] uris = new Uri[permissions.size()];
+                    for (int i = 0; i < permissions.size(); i++) {
+                        uris[i] = permissions.get(i).getUri();
+                    }
+                    mDatabase.cleanDatabase(uris);
+                    if (!isInterrupted()) {
+                        mDatabase.setLastBootCount(bootCount);
+                    }
+                } catch (SQLiteDiskIOException error) {
+                    // It can happen due to disk shortage.
+                    Log.e(TAG, "Failed to clean database.", error);
+                } catch (SecurityException exSec) {
+                    // For UriPermission.
+                    Log.w(TAG, "SecurityException:", exSec);
+                }
+            }
+        };
+    }
+
     @VisibleForTesting
     boolean onCreateForTesting(
             Context context,
@@ -164,6 +325,11 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         mRootScanner = new RootScanner(mResolver, mMtpManager, mDatabase);
         mIntentSender = intentSender;
         mStorageManager = storageManager;
+        mBlockCache = new BlockCache(new File(context.getCacheDir(), BLOCK_CACHE_DIRECTORY));
+        // Tests reuse device IDs and object handles, so they start with an empty cache.
+        final File thumbnailDirectory = new File(context.getCacheDir(), THUMBNAIL_CACHE_DIRECTORY);
+        FileUtils.deleteContents(thumbnailDirectory);
+        mThumbnailCache = new ThumbnailCache(thumbnailDirectory);
 
         resume();
         return true;
@@ -242,6 +408,25 @@ public class MtpDocumentsProvider extends DocumentsProvider {
     @Override
     public Cursor queryChildDocuments(String parentDocumentId,
             String[] projection, String sortOrder) throws FileNotFoundException {
+        return queryChildDocumentsWithFilter(parentDocumentId, projection, null);
+    }
+
+    @Override
+    public Cursor queryChildDocuments(
+            String parentDocumentId, String[] projection, Bundle queryArgs)
+            throws FileNotFoundException {
+        final FormatFilter filter = queryArgs != null ?
+                FormatFilter.create(
+                        queryArgs.getStringArray(DocumentsContract.QUERY_ARG_MIME_TYPES)) :
+                null;
+        if (filter == null) {
+            return super.queryChildDocuments(parentDocumentId, projection, queryArgs);
+        }
+        return queryChildDocumentsWithFilter(parentDocumentId, projection, filter);
+    }
+
+    private Cursor queryChildDocumentsWithFilter(String parentDocumentId,
+            String[] projection, @Nullable FormatFilter filter) throws FileNotFoundException {
         if (DEBUG) {
             Log.d(TAG, "queryChildDocuments: " + parentDocumentId);
         }
@@ -268,7 +453,7 @@ public class MtpDocumentsProvider extends DocumentsProvider {
 
             // Returns object list from document loader.
             return getDocumentLoader(parentIdentifier).queryChildDocuments(
-                    projection, parentIdentifier);
+                    projection, parentIdentifier, filter);
         } catch (BusyDeviceException exception) {
             return createErrorCursor(projection, R.string.error_busy_device);
         } catch (IOException exception) {
@@ -288,41 +473,69 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         try {
             openDevice(identifier.mDeviceId);
             final MtpDeviceRecord device = getDeviceToolkit(identifier.mDeviceId).mDeviceRecord;
+            final boolean deferredSync = mode.indexOf(MODE_DEFERRED_SYNC) >= 0;
             // Turn off MODE_CREATE because openDocument does not allow to create new files.
-            final int modeFlag =
-                    ParcelFileDescriptor.parseMode(mode) & ~ParcelFileDescriptor.MODE_CREATE;
-            if ((modeFlag & ParcelFileDescriptor.MODE_READ_ONLY) != 0) {
+            final int modeFlag = ParcelFileDescriptor.parseMode(
+                    mode.replace(String.valueOf(MODE_DEFERRED_SYNC), "")) &
+                    ~ParcelFileDescriptor.MODE_CREATE;
+            // MODE_READ_WRITE contains the bits of MODE_READ_ONLY and MODE_WRITE_ONLY, so it needs
+            // to be checked first.
+            if ((modeFlag & ParcelFileDescriptor.MODE_READ_WRITE) ==
+                    ParcelFileDescriptor.MODE_READ_WRITE) {
+                // MtpDevice cannot edit objects in place, so the object is copied to the local
+                // cache at the first write and uploaded again. Reads before the first write are
+                // served from the device. If the mode truncates the object, it is not copied.
+                if (MtpDeviceRecord.isWritingSupported(device.capabilities)) {
+                    final boolean loadContent =
+                            (modeFlag & ParcelFileDescriptor.MODE_TRUNCATE) == 0;
+                    return mStorageManager.openProxyFileDescriptor(
+                            modeFlag,
+                            new MtpProxyFileDescriptorCallback(
+                                    documentId, loadContent, deferredSync, -1));
+                } else {
+                    throw new UnsupportedOperationException(
+                            "The device does not support writing operation.");
+                }
+            } else if ((modeFlag & ParcelFileDescriptor.MODE_READ_ONLY) != 0) {
                 long fileSize;
                 try {
                     fileSize = getFileSize(documentId);
                 } catch (UnsupportedOperationException exception) {
                     fileSize = -1;
                 }
-                if (MtpDeviceRecord.isPartialReadSupported(
-                        device.operationsSupported, fileSize)) {
+                if (MtpDeviceRecord.isPartialReadSupported(device.capabilities, fileSize)) {
 
                     return mStorageManager.openProxyFileDescriptor(
-                            modeFlag,
-                            new MtpProxyFileDescriptorCallback(Integer.parseInt(documentId)));
-                } else {
-                    // If getPartialObject{|64} are not supported for the device, returns
-                    // non-seekable pipe FD instead.
-                    return getPipeManager(identifier).readDocument(mMtpManager, identifier);
+                            modeFlag, createProxyFileDescriptorCallback(documentId));
+                }
+                if (fileSize >= 0) {
+                    // If getPartialObject{|64} are not supported for the device, downloads the
+                    // whole object into a spool and serves reads from it.
+                    final DocumentSpool spool = getPipeManager(identifier).spoolDocument(
+                            mMtpManager,
+                            identifier,
+                            fileSize,
+                            getLastModified(documentId),
+                            new File(mContext.getCacheDir(), SPOOL_DIRECTORY));
+                    if (spool != null) {
+                        return openSpoolFileDescriptor(modeFlag, spool);
+                    }
                 }
-            } else if ((modeFlag & ParcelFileDescriptor.MODE_WRITE_ONLY) != 0) {
+                // If the size is unknown or the cache does not have space for the spool,
+                // returns non-seekable pipe FD instead.
+                return getPipeManager(identifier).readDocument(mMtpManager, identifier);
+            } else {
                 // TODO: Clear the parent document loader task (if exists) and call notify
                 // when writing is completed.
-                if (MtpDeviceRecord.isWritingSupported(device.operationsSupported)) {
+                if (MtpDeviceRecord.isWritingSupported(device.capabilities)) {
                     return mStorageManager.openProxyFileDescriptor(
                             modeFlag,
-                            new MtpProxyFileDescriptorCallback(Integer.parseInt(documentId)));
+                            new MtpProxyFileDescriptorCallback(
+                                    documentId, false, deferredSync, takeDeclaredSize(documentId)));
                 } else {
                     throw new UnsupportedOperationException(
                             "The device does not support writing operation.");
                 }
-            } else {
-                // TODO: Add support for "rw" mode.
-                throw new UnsupportedOperationException("The provider does not support 'rw' mode.");
             }
         } catch (FileNotFoundException | RuntimeException error) {
             Log.e(MtpDocumentsProvider.TAG, "openDocument", error);
@@ -333,6 +546,70 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         }
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case METHOD_DECLARE_SIZE:
+                enforceManageDocuments();
+                declareSize(arg, extras.getLong(EXTRA_SIZE, -1));
+                return null;
+            case METHOD_DELETE_DOCUMENTS: {
+                enforceManageDocuments();
+                final Bundle result = new Bundle();
+                result.putStringArray(
+                        EXTRA_DOCUMENT_IDS,
+                        deleteDocuments(extras.getStringArray(EXTRA_DOCUMENT_IDS)));
+                return result;
+            }
+            case METHOD_QUERY_DOCUMENTS:
+                enforceManageDocuments();
+                return queryDocuments(
+                        extras.getStringArray(EXTRA_DOCUMENT_IDS),
+                        extras.getStringArray(EXTRA_PROJECTION),
+                        extras.getInt(EXTRA_START_INDEX, 0));
+            case METHOD_GET_CHANGES:
+                enforceManageDocuments();
+                return getChanges(extras != null ? extras.getLong(EXTRA_TOKEN, -1) : -1);
+            case METHOD_INDEX_STORAGE:
+                enforceManageDocuments();
+                try {
+                    indexStorage(arg);
+                } catch (FileNotFoundException error) {
+                    throw new IllegalArgumentException(error);
+                }
+                return null;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    private void enforceManageDocuments() {
+        getContext().enforceCallingOrSelfPermission(
+                android.Manifest.permission.MANAGE_DOCUMENTS, null);
+    }
+
+    /**
+     * Declares the size of the content written at the next opening of the document, so that the
+     * content can be streamed to the device.
+     */
+    @VisibleForTesting
+    void declareSize(String documentId, long size) {
+        synchronized (mDeclaredSizes) {
+            if (size >= 0) {
+                mDeclaredSizes.put(documentId, size);
+            } else {
+                mDeclaredSizes.remove(documentId);
+            }
+        }
+    }
+
+    private long takeDeclaredSize(String documentId) {
+        synchronized (mDeclaredSizes) {
+            final Long size = mDeclaredSizes.remove(documentId);
+            return size != null ? size : -1;
+        }
+    }
+
     @Override
     public AssetFileDescriptor openDocumentThumbnail(
             String documentId,
@@ -341,8 +618,16 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         final Identifier identifier = mDatabase.createIdentifier(documentId);
         try {
             openDevice(identifier.mDeviceId);
+            final String key = getThumbnailKey(identifier);
+            if (key != null) {
+                final AssetFileDescriptor cached = mThumbnailCache.open(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
             return new AssetFileDescriptor(
-                    getPipeManager(identifier).readThumbnail(mMtpManager, identifier),
+                    getPipeManager(identifier).readThumbnail(
+                            mMtpManager, identifier, key != null ? mThumbnailCache : null, key),
                     0,  // Start offset.
                     AssetFileDescriptor.UNKNOWN_LENGTH);
         } catch (IOException error) {
@@ -358,6 +643,10 @@ public class MtpDocumentsProvider extends DocumentsProvider {
             openDevice(identifier.mDeviceId);
             final Identifier parentIdentifier = mDatabase.getParentIdentifier(documentId);
             mMtpManager.deleteDocument(identifier.mDeviceId, identifier.mObjectHandle);
+            mBlockCache.invalidateObject(identifier.mDeviceId, identifier.mObjectHandle);
+            getPipeManager(identifier).invalidateSpool(identifier.mObjectHandle);
+            getDocumentLoader(identifier).getSizeResolver().invalidate(identifier.mObjectHandle);
+            takeDeclaredSize(documentId);
             mDatabase.deleteDocument(documentId);
             getDocumentLoader(parentIdentifier).cancelTask(parentIdentifier);
             notifyChildDocumentsChange(parentIdentifier.mDocumentId);
@@ -374,6 +663,248 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Deletes documents in a batch. Objects on the same device are deleted without interleaving
+     * other operations, the database is updated in one transaction, and each affected parent is
+     * notified once.
+     * @return IDs of deleted documents.
+     */
+    @VisibleForTesting
+    String[] deleteDocuments(String[] documentIds) {
+        final Map<Integer, List<Identifier>> identifiersByDevice = new LinkedHashMap<>();
+        final Map<Identifier, Identifier> parentIdentifiers = new HashMap<>();
+        for (final String documentId : documentIds) {
+            try {
+                final Identifier identifier = mDatabase.createIdentifier(documentId);
+                parentIdentifiers.put(identifier, mDatabase.getParentIdentifier(documentId));
+                List<Identifier> identifiers = identifiersByDevice.get(identifier.mDeviceId);
+                if (identifiers == null) {
+                    identifiers = new ArrayList<>();
+                    identifiersByDevice.put(identifier.mDeviceId, identifiers);
+                }
+                identifiers.add(identifier);
+            } catch (FileNotFoundException error) {
+                Log.e(TAG, "deleteDocuments", error);
+            }
+        }
+
+        final ArrayList<String> deletedIds = new ArrayList<>();
+        final Set<Identifier> affectedParents = new LinkedHashSet<>();
+        for (final Map.Entry<Integer, List<Identifier>> entry : identifiersByDevice.entrySet()) {
+            final int deviceId = entry.getKey();
+            final List<Identifier> identifiers = entry.getValue();
+            final int[] objectHandles = new int[identifiers.size()];
+            for (int i = 0; i < identifiers.size(); i++) {
+                objectHandles[i] = identifiers.get(i).mObjectHandle;
+            }
+            final boolean[] results;
+            try {
+                openDevice(deviceId);
+                results = mMtpManager.deleteDocuments(deviceId, objectHandles);
+            } catch (IOException error) {
+                Log.e(TAG, "deleteDocuments", error);
+                continue;
+            }
+            for (int i = 0; i < identifiers.size(); i++) {
+                if (!results[i]) {
+                    continue;
+                }
+                final Identifier identifier = identifiers.get(i);
+                mBlockCache.invalidateObject(deviceId, identifier.mObjectHandle);
+                takeDeclaredSize(identifier.mDocumentId);
+                try {
+                    getPipeManager(identifier).invalidateSpool(identifier.mObjectHandle);
+                    getDocumentLoader(identifier).getSizeResolver().invalidate(
+                            identifier.mObjectHandle);
+                } catch (FileNotFoundException error) {
+                    // The device has been closed, and its spools are already dropped.
+                }
+                deletedIds.add(identifier.mDocumentId);
+                affectedParents.add(parentIdentifiers.get(identifier));
+            }
+        }
+        mDatabase.deleteDocuments(deletedIds);
+
+        final Set<String> notifiedIds = new HashSet<>();
+        for (final Identifier parentIdentifier : affectedParents) {
+            try {
+                getDocumentLoader(parentIdentifier).cancelTask(parentIdentifier);
+                if (notifiedIds.add(parentIdentifier.mDocumentId)) {
+                    notifyChildDocumentsChange(parentIdentifier.mDocumentId);
+                }
+                if (parentIdentifier.mDocumentType ==
+                        MtpDatabaseConstants.DOCUMENT_TYPE_STORAGE) {
+                    // Objects under a storage can be shown as children of the device.
+                    final Identifier deviceIdentifier =
+                            mDatabase.getParentIdentifier(parentIdentifier.mDocumentId);
+                    if (notifiedIds.add(deviceIdentifier.mDocumentId)) {
+                        notifyChildDocumentsChange(deviceIdentifier.mDocumentId);
+                    }
+                }
+            } catch (FileNotFoundException error) {
+                Log.e(TAG, "deleteDocuments", error);
+            }
+        }
+        return deletedIds.toArray(new String[deletedIds.size()]);
+    }
+
+    /**
+     * Queries up to {@link #MAX_QUERY_DOCUMENTS} documents with a single database query.
+     * Unlike {@link #queryDocument}, device documents are returned as stored in the database
+     * without merging their storages.
+     */
+    @VisibleForTesting
+    Bundle queryDocuments(String[] documentIds, @Nullable String[] projection, int startIndex) {
+        if (projection == null) {
+            projection = DEFAULT_DOCUMENT_PROJECTION;
+        }
+        startIndex = Math.max(0, Math.min(startIndex, documentIds.length));
+        final int endIndex = Math.min(documentIds.length, startIndex + MAX_QUERY_DOCUMENTS);
+        final String[] ids = Arrays.copyOfRange(documentIds, startIndex, endIndex);
+
+        final Map<String, Integer> positions = new HashMap<>();
+        final String[] queryProjection = new String[projection.length + 1];
+        queryProjection[0] = Document.COLUMN_DOCUMENT_ID;
+        System.arraycopy(projection, 0, queryProjection, 1, projection.length);
+        final Object[][] rows = ids.length != 0 ?
+                queryRows(ids, queryProjection, positions) : new Object[0][];
+
+        final ArrayList<String> foundIds = new ArrayList<>(rows.length);
+        final ArrayList<Object[]> orderedRows = new ArrayList<>(rows.length);
+        // Reorders the rows in the order of requested IDs.
+        for (final String id : ids) {
+            final Integer position = positions.remove(id);
+            if (position != null) {
+                foundIds.add(id);
+                orderedRows.add(rows[position]);
+            }
+        }
+
+        final Bundle result = new Bundle();
+        result.putStringArray(EXTRA_DOCUMENT_IDS, foundIds.toArray(new String[foundIds.size()]));
+        for (int i = 0; i < projection.length; i++) {
+            boolean integer = true;
+            for (final Object[] row : orderedRows) {
+                if (!(row[i] instanceof Long)) {
+                    integer = false;
+                    break;
+                }
+            }
+            if (integer) {
+                final long[] values = new long[orderedRows.size()];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = (Long) orderedRows.get(j)[i];
+                }
+                result.putLongArray(projection[i], values);
+            } else {
+                final String[] values = new String[orderedRows.size()];
+                for (int j = 0; j < values.length; j++) {
+                    final Object value = orderedRows.get(j)[i];
+                    values[j] = value != null ? value.toString() : null;
+                }
+                result.putStringArray(projection[i], values);
+            }
+        }
+        result.putInt(EXTRA_NEXT_INDEX, endIndex < documentIds.length ? endIndex : -1);
+        return result;
+    }
+
+    /**
+     * Returns up to {@link #MAX_CHANGES_PER_CALL} changes after the token.
+     * @param token Token returned by the previous call, or -1 to get the current token.
+     */
+    @VisibleForTesting
+    Bundle getChanges(long token) {
+        final long[] range = mDatabase.getChangeSequenceRange();
+        final Bundle result = new Bundle();
+        // Changes just after the token must remain in the journal. The token must not be newer than
+        // the journal either, which happens when the database is recreated.
+        if (token < 0 || token < range[0] - 1 || token > range[1]) {
+            result.putStringArray(EXTRA_DOCUMENT_IDS, new String[0]);
+            result.putStringArray(EXTRA_PARENT_DOCUMENT_IDS, new String[0]);
+            result.putIntArray(EXTRA_CHANGE_TYPES, new int[0]);
+            result.putLong(EXTRA_TOKEN, range[1]);
+            result.putBoolean(EXTRA_HAS_MORE, false);
+            result.putBoolean(EXTRA_RESET, true);
+            return result;
+        }
+
+        try (final Cursor cursor = mDatabase.queryChanges(token, MAX_CHANGES_PER_CALL)) {
+            final String[] documentIds = new String[cursor.getCount()];
+            final String[] parentDocumentIds = new String[cursor.getCount()];
+            final int[] changeTypes = new int[cursor.getCount()];
+            long nextToken = token;
+            while (cursor.moveToNext()) {
+                final int i = cursor.getPosition();
+                nextToken = cursor.getLong(0);
+                documentIds[i] = cursor.getString(1);
+                parentDocumentIds[i] = cursor.getString(2);
+                changeTypes[i] = cursor.getInt(3);
+            }
+            result.putStringArray(EXTRA_DOCUMENT_IDS, documentIds);
+            result.putStringArray(EXTRA_PARENT_DOCUMENT_IDS, parentDocumentIds);
+            result.putIntArray(EXTRA_CHANGE_TYPES, changeTypes);
+            result.putLong(EXTRA_TOKEN, nextToken);
+            result.putBoolean(EXTRA_HAS_MORE, nextToken < range[1]);
+            result.putBoolean(EXTRA_RESET, false);
+            return result;
+        }
+    }
+
+    /**
+     * Starts indexing the storage unless it is being indexed.
+     * @return Indexer of the storage.
+     */
+    @VisibleForTesting
+    StorageIndexer indexStorage(String documentId) throws FileNotFoundException {
+        final Identifier identifier = mDatabase.createIdentifier(documentId);
+        if (identifier.mDocumentType != MtpDatabaseConstants.DOCUMENT_TYPE_STORAGE) {
+            throw new FileNotFoundException("Not a storage document: " + documentId);
+        }
+        try {
+            openDevice(identifier.mDeviceId);
+        } catch (IOException error) {
+            throw new FileNotFoundException(error.getMessage());
+        }
+        final DeviceToolkit toolkit = getDeviceToolkit(identifier.mDeviceId);
+        synchronized (toolkit) {
+            StorageIndexer indexer = toolkit.mIndexers.get(identifier.mStorageId);
+            if (indexer == null || !indexer.isRunning()) {
+                indexer = new StorageIndexer(
+                        mContext, mMtpManager, mResolver, mDatabase, toolkit.mDocumentLoader,
+                        identifier);
+                toolkit.mIndexers.put(identifier.mStorageId, indexer);
+                indexer.start();
+            }
+            return indexer;
+        }
+    }
+
+    private Object[][] queryRows(
+            String[] documentIds, String[] projection, Map<String, Integer> positions) {
+        try (final Cursor cursor = mDatabase.queryDocuments(documentIds, projection)) {
+            final Object[][] rows = new Object[cursor.getCount()][];
+            while (cursor.moveToNext()) {
+                positions.put(cursor.getString(0), cursor.getPosition());
+                final Object[] row = new Object[projection.length - 1];
+                for (int i = 0; i < row.length; i++) {
+                    switch (cursor.getType(i + 1)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = cursor.getLong(i + 1);
+                            break;
+                        default:
+                            row[i] = cursor.getString(i + 1);
+                            break;
+                    }
+                }
+                rows[cursor.getPosition()] = row;
+            }
+            return rows;
+        }
+    }
+
     @Override
     public void onTrimMemory(int level) {
         synchronized (mDeviceListLock) {
@@ -396,7 +927,7 @@ public class MtpDocumentsProvider extends DocumentsProvider {
             parentId = mDatabase.createIdentifier(parentDocumentId);
             openDevice(parentId.mDeviceId);
             record = getDeviceToolkit(parentId.mDeviceId).mDeviceRecord;
-            if (!MtpDeviceRecord.isWritingSupported(record.operationsSupported)) {
+            if (!MtpDeviceRecord.isWritingSupported(record.capabilities)) {
                 throw new UnsupportedOperationException(
                         "Writing operation is not supported by the device.");
             }
@@ -447,21 +978,27 @@ public class MtpDocumentsProvider extends DocumentsProvider {
                 final String[] parts = FileUtils.splitFileName(mimeType, displayName);
                 final String baseName = parts[0];
                 final String extension = parts[1];
-                for (int i = 0; i <= 32; i++) {
-                    final MtpObjectInfo infoUniqueName;
-                    if (i == 0) {
-                        infoUniqueName = info;
-                    } else {
-                        String suffixedName = baseName + " (" + i + " )";
-                        if (!extension.isEmpty()) {
-                            suffixedName += "." + extension;
-                        }
-                        infoUniqueName =
-                                new MtpObjectInfo.Builder(info).setName(suffixedName).build();
-                    }
+                // Skip names used by known siblings, so that SendObjectInfo usually succeeds at
+                // the first attempt. Siblings that have not been loaded yet may still conflict,
+                // and then the loop tries following names.
+                final Set<String> siblingNames = new HashSet<>();
+                for (final String name : mDatabase.getChildDisplayNames(parentDocumentId)) {
+                    siblingNames.add(name.toLowerCase(Locale.ROOT));
+                }
+                int i = 0;
+                while (i < MAX_NAME_SUFFIX && siblingNames.contains(
+                        getSuffixedName(displayName, baseName, extension, i)
+                                .toLowerCase(Locale.ROOT))) {
+                    i++;
+                }
+                for (; i <= MAX_NAME_SUFFIX; i++) {
+                    final MtpObjectInfo infoUniqueName = new MtpObjectInfo.Builder(info)
+                            .setName(getSuffixedName(displayName, baseName, extension, i))
+                            .build();
                     try {
                         objectHandle = mMtpManager.createDocument(
                                 parentId.mDeviceId, infoUniqueName, pipe[1]);
+                        info = infoUniqueName;
                         break;
                     } catch (SendObjectInfoFailure exp) {
                         // This can be caused when we have an existing file with the same name.
@@ -479,7 +1016,7 @@ public class MtpDocumentsProvider extends DocumentsProvider {
             final MtpObjectInfo infoWithHandle =
                     new MtpObjectInfo.Builder(info).setObjectHandle(objectHandle).build();
             final String documentId = mDatabase.putNewDocument(
-                    parentId.mDeviceId, parentDocumentId, record.operationsSupported,
+                    parentId.mDeviceId, parentDocumentId, record.capabilities,
                     infoWithHandle, 0l);
             getDocumentLoader(parentId).cancelTask(parentId);
             notifyChildDocumentsChange(parentDocumentId);
@@ -493,13 +1030,30 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Returns the display name with the given suffix number. The name without a suffix is returned
+     * for 0.
+     */
+    private static String getSuffixedName(
+            String displayName, String baseName, String extension, int suffix) {
+        if (suffix == 0) {
+            return displayName;
+        }
+        String suffixedName = baseName + " (" + suffix + " )";
+        if (!extension.isEmpty()) {
+            suffixedName += "." + extension;
+        }
+        return suffixedName;
+    }
+
     @Override
     public Path findDocumentPath(String parentDocumentId, String childDocumentId)
             throws FileNotFoundException {
         final LinkedList<String> ids = new LinkedList<>();
-        final Identifier childIdentifier = mDatabase.createIdentifier(childDocumentId);
+        final MtpDatabase.Ancestor[] ancestors = mDatabase.getAncestors(childDocumentId);
+        int index = 0;
 
-        Identifier i = childIdentifier;
+        Identifier i = getAncestor(ancestors, index).mIdentifier;
         outer: while (true) {
             if (i.mDocumentId.equals(parentDocumentId)) {
                 ids.addFirst(i.mDocumentId);
@@ -508,21 +1062,17 @@ public class MtpDocumentsProvider extends DocumentsProvider {
             switch (i.mDocumentType) {
                 case MtpDatabaseConstants.DOCUMENT_TYPE_OBJECT:
                     ids.addFirst(i.mDocumentId);
-                    i = mDatabase.getParentIdentifier(i.mDocumentId);
+                    i = getAncestor(ancestors, ++index).mIdentifier;
                     break;
                 case MtpDatabaseConstants.DOCUMENT_TYPE_STORAGE: {
-                    // Check if there is the multiple storage.
-                    final Identifier deviceIdentifier =
-                            mDatabase.getParentIdentifier(i.mDocumentId);
-                    final String[] storageIds =
-                            mDatabase.getStorageDocumentIds(deviceIdentifier.mDocumentId);
+                    final MtpDatabase.Ancestor device = getAncestor(ancestors, ++index);
                     // Add storage's document ID to the path only when the device has multiple
                     // storages.
-                    if (storageIds.length > 1) {
+                    if (device.mStorageCount > 1) {
                         ids.addFirst(i.mDocumentId);
                         break outer;
                     }
-                    i = deviceIdentifier;
+                    i = device.mIdentifier;
                     break;
                 }
                 case MtpDatabaseConstants.DOCUMENT_TYPE_DEVICE:
@@ -540,20 +1090,20 @@ public class MtpDocumentsProvider extends DocumentsProvider {
 
     @Override
     public boolean isChildDocument(String parentDocumentId, String documentId) {
-        try {
-            Identifier identifier = mDatabase.createIdentifier(documentId);
-            while (true) {
-                if (parentDocumentId.equals(identifier.mDocumentId)) {
-                    return true;
-                }
-                if (identifier.mDocumentType == MtpDatabaseConstants.DOCUMENT_TYPE_DEVICE) {
-                    return false;
-                }
-                identifier = mDatabase.getParentIdentifier(identifier.mDocumentId);
+        for (final MtpDatabase.Ancestor ancestor : mDatabase.getAncestors(documentId)) {
+            if (parentDocumentId.equals(ancestor.mIdentifier.mDocumentId)) {
+                return true;
             }
-        } catch (FileNotFoundException error) {
-            return false;
         }
+        return false;
+    }
+
+    private static MtpDatabase.Ancestor getAncestor(MtpDatabase.Ancestor[] ancestors, int index)
+            throws FileNotFoundException {
+        if (index >= ancestors.length) {
+            throw new FileNotFoundException("Cannot find an ancestor at depth " + index);
+        }
+        return ancestors[index];
     }
 
     @Override
@@ -589,7 +1139,7 @@ public class MtpDocumentsProvider extends DocumentsProvider {
             }
             final MtpDeviceRecord device = mMtpManager.openDevice(deviceId);
             final DeviceToolkit toolkit =
-                    new DeviceToolkit(mMtpManager, mResolver, mDatabase, device);
+                    new DeviceToolkit(mMtpManager, mResolver, mDatabase, device, mThumbnailCache);
             mDeviceToolkits.put(deviceId, toolkit);
             mIntentSender.sendUpdateNotificationIntent(getOpenedDeviceRecordsCache());
             try {
@@ -657,16 +1207,31 @@ public class MtpDocumentsProvider extends DocumentsProvider {
                     closeDeviceInternal(id);
                 }
                 mRootScanner.pause();
+                if (mDatabaseCleaner != null) {
+                    mDatabaseCleaner.interrupt();
+                    mDatabaseCleaner.join();
+                }
             } catch (InterruptedException | IOException | TimeoutException e) {
                 // It should fail unit tests by throwing runtime exception.
                 throw new RuntimeException(e);
             } finally {
+                mBlockCache.clear();
+                mThumbnailCache.close();
                 mDatabase.close();
                 super.shutdown();
             }
         }
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mBlockCache.dump(writer);
+        mThumbnailCache.dump(writer);
+        writer.println("Writing:");
+        writer.println("  uploads: " + mUploadCount.get() +
+                ", avoided uploads: " + mAvoidedUploadCount.get());
+    }
+
     private void notifyChildDocumentsChange(String parentDocumentId) {
         mResolver.notifyChange(
                 DocumentsContract.buildChildDocumentsUri(AUTHORITY, parentDocumentId),
@@ -693,6 +1258,8 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         }
         getDeviceToolkit(deviceId).close();
         mDeviceToolkits.remove(deviceId);
+        mBlockCache.invalidateDevice(deviceId);
+        mThumbnailCache.cancelPrefetch(deviceId);
         mMtpManager.closeDevice(deviceId);
     }
 
@@ -706,6 +1273,12 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         }
     }
 
+    @VisibleForTesting
+    ProxyFileDescriptorCallback createProxyFileDescriptorCallback(String documentId)
+            throws FileNotFoundException {
+        return new MtpProxyFileDescriptorCallback(documentId);
+    }
+
     private PipeManager getPipeManager(Identifier identifier) throws FileNotFoundException {
         return getDeviceToolkit(identifier.mDeviceId).mPipeManager;
     }
@@ -721,7 +1294,7 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         try {
             if (cursor.moveToNext()) {
                 if (cursor.isNull(0)) {
-                    throw new UnsupportedOperationException();
+                    return resolveFileSize(documentId);
                 }
                 return cursor.getLong(0);
             } else {
@@ -732,6 +1305,84 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Asks the device for the size of the object whose size is not resolved yet.
+     */
+    private long resolveFileSize(String documentId) throws FileNotFoundException {
+        final Identifier identifier = mDatabase.createIdentifier(documentId);
+        if (identifier.mDocumentType != MtpDatabaseConstants.DOCUMENT_TYPE_OBJECT) {
+            throw new UnsupportedOperationException();
+        }
+        final long size = getDocumentLoader(identifier).getSizeResolver().resolve(identifier);
+        if (size < 0) {
+            throw new UnsupportedOperationException();
+        }
+        return size;
+    }
+
+    private long getLastModified(String documentId) throws FileNotFoundException {
+        final Cursor cursor = mDatabase.queryDocument(
+                documentId, MtpDatabase.strings(Document.COLUMN_LAST_MODIFIED));
+        try {
+            if (cursor.moveToNext()) {
+                return cursor.isNull(0) ? -1 : cursor.getLong(0);
+            } else {
+                throw new FileNotFoundException();
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns a key of the thumbnail cache for the document, or null if the thumbnail must not be
+     * cached.
+     */
+    private @Nullable String getThumbnailKey(Identifier identifier) throws FileNotFoundException {
+        final MtpDeviceRecord device = getDeviceToolkit(identifier.mDeviceId).mDeviceRecord;
+        if (device.deviceKey == null) {
+            return null;
+        }
+        final Cursor cursor = mDatabase.queryDocument(
+                identifier.mDocumentId,
+                MtpDatabase.strings(Document.COLUMN_LAST_MODIFIED, Document.COLUMN_SIZE));
+        try {
+            if (!cursor.moveToNext()) {
+                throw new FileNotFoundException();
+            }
+            return ThumbnailCache.createKey(
+                    device.deviceKey,
+                    identifier.mStorageId,
+                    identifier.mObjectHandle,
+                    cursor.isNull(0) ? -1 : cursor.getLong(0),
+                    cursor.isNull(1) ? -1 : cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Opens a seekable file descriptor reading from the spool. The spool is released when the
+     * descriptor is closed.
+     */
+    private ParcelFileDescriptor openSpoolFileDescriptor(int mode, DocumentSpool spool)
+            throws IOException {
+        // Reads can block until the range is downloaded, so each descriptor has its own thread
+        // not to block other proxy file descriptors.
+        final HandlerThread thread = new HandlerThread("MtpSpoolReader");
+        thread.start();
+        try {
+            return mStorageManager.openProxyFileDescriptor(
+                    mode,
+                    new SpoolProxyFileDescriptorCallback(spool, thread),
+                    new Handler(thread.getLooper()));
+        } catch (IOException | RuntimeException error) {
+            thread.quitSafely();
+            spool.release();
+            throw error;
+        }
+    }
+
     /**
      * Creates empty cursor with specific error message.
      *
@@ -751,58 +1402,151 @@ public class MtpDocumentsProvider extends DocumentsProvider {
         public final PipeManager mPipeManager;
         public final DocumentLoader mDocumentLoader;
         public final MtpDeviceRecord mDeviceRecord;
+        @GuardedBy("this")
+        public final SparseArray<StorageIndexer> mIndexers = new SparseArray<>();
+        private volatile boolean mClosed;
 
         public DeviceToolkit(MtpManager manager,
                              ContentResolver resolver,
                              MtpDatabase database,
-                             MtpDeviceRecord record) {
+                             MtpDeviceRecord record,
+                             ThumbnailCache thumbnailCache) {
             mPipeManager = new PipeManager(database);
-            mDocumentLoader = new DocumentLoader(record, manager, resolver, database);
+            mDocumentLoader =
+                    new DocumentLoader(record, manager, resolver, database, thumbnailCache);
             mDeviceRecord = record;
         }
 
         @Override
         public void close() throws InterruptedException {
+            mClosed = true;
+            synchronized (this) {
+                for (int i = 0; i < mIndexers.size(); i++) {
+                    mIndexers.valueAt(i).close();
+                }
+                mIndexers.clear();
+            }
             mPipeManager.close();
             mDocumentLoader.close();
         }
+
+        boolean isClosed() {
+            return mClosed;
+        }
     }
 
-    private class MtpProxyFileDescriptorCallback extends ProxyFileDescriptorCallback {
-        private final int mInode;
+    private class MtpProxyFileDescriptorCallback extends ProxyFileDescriptorCallback
+            implements BlockCache.BlockReader {
+        private static final int READ_UNSUPPORTED = 0;
+        private static final int READ_PARTIAL_OBJECT = 1;
+        private static final int READ_PARTIAL_OBJECT_64 = 2;
+
+        private final String mDocumentId;
+        private final boolean mLoadContent;
+        private final boolean mDeferredSync;
+        private final long mDeclaredSize;
         private MtpFileWriter mWriter;
+        private MtpStreamWriter mStreamWriter;
+        private long mLastUploadTime = -FSYNC_WINDOW_MS;
+        private Handler mDeferredSyncHandler;
+        private boolean mDeferredSyncScheduled;
+        private ErrnoException mDeferredSyncError;
+        private final Runnable mDeferredSyncTask = new Runnable() {
+            @Override
+            public void run() {
+                mDeferredSyncScheduled = false;
+                try {
+                    tryFsync();
+                } catch (ErrnoException error) {
+                    // The client is waiting for no call, so the next fsync reports the error.
+                    Log.e(TAG, "Failed to upload a document.", error);
+                    mDeferredSyncError = error;
+                }
+            }
+        };
+
+        // The following fields are resolved when the descriptor is opened, so that reading does
+        // not need to query the database or the device list. They are resolved again after the
+        // object is replaced or the device is closed.
+        private Identifier mIdentifier;
+        private DeviceToolkit mToolkit;
+        private int mReadStrategy;
+        private BlockCache.Entry mBlocks;
+
+        // The size may need a request to the device, so it is resolved when it is first read.
+        private long mSize;
+        private boolean mSizeResolved;
+
+        MtpProxyFileDescriptorCallback(String documentId) throws FileNotFoundException {
+            mDocumentId = documentId;
+            mLoadContent = false;
+            mDeferredSync = false;
+            mDeclaredSize = -1;
+            resolve();
+        }
 
-        MtpProxyFileDescriptorCallback(int inode) {
-            mInode = inode;
+        /**
+         * @param loadContent Whether to copy the object to the writer before the first write or
+         *     the first read that the device cannot serve, so that the descriptor reads and
+         *     modifies the local copy.
+         * @param deferredSync Whether to coalesce uploads triggered by fsync.
+         * @param declaredSize Size of the new content declared by the client, or -1. If the size is
+         *     declared and the client writes from the beginning, the content is streamed to the
+         *     device without staging.
+         */
+        MtpProxyFileDescriptorCallback(String documentId, boolean loadContent,
+                boolean deferredSync, long declaredSize) throws IOException {
+            mDocumentId = documentId;
+            mLoadContent = loadContent;
+            mDeferredSync = deferredSync;
+            mDeclaredSize = declaredSize;
+            resolve();
         }
 
         @Override
         public long onGetSize() throws ErrnoException {
+            if (mWriter != null) {
+                return mWriter.getSize();
+            }
+            if (mStreamWriter != null) {
+                return mStreamWriter.getPosition();
+            }
+            final long size;
             try {
-                return getFileSize(String.valueOf(mInode));
+                size = getSize();
+                if (size < 0 && mLoadContent) {
+                    return getWriter().getSize();
+                }
             } catch (FileNotFoundException e) {
                 Log.e(TAG, e.getMessage(), e);
                 throw new ErrnoException("onGetSize", OsConstants.ENOENT);
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+                throw new ErrnoException("onGetSize", OsConstants.EIO);
+            }
+            if (size < 0) {
+                throw new ErrnoException("onGetSize", OsConstants.ENOTSUP);
             }
+            return size;
         }
 
         @Override
         public int onRead(long offset, int size, byte[] data) throws ErrnoException {
             try {
-                final Identifier identifier = mDatabase.createIdentifier(Integer.toString(mInode));
-                final MtpDeviceRecord record = getDeviceToolkit(identifier.mDeviceId).mDeviceRecord;
-                if (MtpDeviceRecord.isSupported(
-                        record.operationsSupported, MtpConstants.OPERATION_GET_PARTIAL_OBJECT_64)) {
-
-                        return (int) mMtpManager.getPartialObject64(
-                                identifier.mDeviceId, identifier.mObjectHandle, offset, size, data);
-
+                if (mWriter != null) {
+                    return mWriter.read(offset, size, data);
                 }
-                if (0 <= offset && offset <= 0xffffffffL && MtpDeviceRecord.isSupported(
-                        record.operationsSupported, MtpConstants.OPERATION_GET_PARTIAL_OBJECT)) {
-                    return (int) mMtpManager.getPartialObject(
-                            identifier.mDeviceId, identifier.mObjectHandle, offset, size, data);
+                ensureResolved();
+                try {
+                    return mBlockCache.read(mBlocks, offset, size, data, this);
+                } catch (UnsupportedReadException e) {
+                    if (!mLoadContent) {
+                        throw e;
+                    }
+                    // The device cannot read the range, so the object is read from the copy.
+                    return getWriter().read(offset, size, data);
                 }
+            } catch (UnsupportedReadException e) {
                 throw new ErrnoException("onRead", OsConstants.ENOTSUP);
             } catch (IOException e) {
                 Log.e(TAG, e.getMessage(), e);
@@ -810,13 +1554,41 @@ public class MtpDocumentsProvider extends DocumentsProvider {
             }
         }
 
+        @Override
+        public int readBlock(long offset, int size, byte[] buffer) throws IOException {
+            switch (mReadStrategy) {
+                case READ_PARTIAL_OBJECT_64:
+                    return (int) mMtpManager.getPartialObject64(
+                            mIdentifier.mDeviceId, mIdentifier.mObjectHandle, offset, size, buffer);
+                case READ_PARTIAL_OBJECT:
+                    if (0 <= offset && offset <= 0xffffffffL) {
+                        return (int) mMtpManager.getPartialObject(
+                                mIdentifier.mDeviceId, mIdentifier.mObjectHandle, offset, size,
+                                buffer);
+                    }
+                    break;
+            }
+            throw new UnsupportedReadException();
+        }
+
+        @Override
+        public long getObjectSize() throws IOException {
+            return getSize();
+        }
+
         @Override
         public int onWrite(long offset, int size, byte[] data) throws ErrnoException {
             try {
-                if (mWriter == null) {
-                    mWriter = new MtpFileWriter(mContext, String.valueOf(mInode));
+                if (mWriter == null && mStreamWriter == null && mDeclaredSize >= 0 &&
+                        offset == 0) {
+                    ensureResolved();
+                    mStreamWriter = new MtpStreamWriter(
+                            mContext, mMtpManager, mIdentifier, mDeclaredSize);
+                }
+                if (mStreamWriter != null) {
+                    return mStreamWriter.write(offset, size, data);
                 }
-                return mWriter.write(offset, size, data);
+                return getWriter().write(offset, size, data);
             } catch (IOException e) {
                 Log.e(TAG, e.getMessage(), e);
                 throw new ErrnoException("onWrite", OsConstants.EIO);
@@ -825,36 +1597,210 @@ public class MtpDocumentsProvider extends DocumentsProvider {
 
         @Override
         public void onFsync() throws ErrnoException {
-            tryFsync();
+            if (mStreamWriter != null) {
+                // Streamed bytes are already in flight, and the object is complete only after all
+                // declared bytes are written.
+                if (mStreamWriter.isCompleted()) {
+                    finishStream();
+                }
+                return;
+            }
+            if (mDeferredSyncError != null) {
+                final ErrnoException error = mDeferredSyncError;
+                mDeferredSyncError = null;
+                throw error;
+            }
+            final long elapsed = SystemClock.elapsedRealtime() - mLastUploadTime;
+            if (!mDeferredSync || elapsed >= FSYNC_WINDOW_MS || Looper.myLooper() == null) {
+                tryFsync();
+                return;
+            }
+            // Defers the upload to the end of the window. The callback runs on the looper that
+            // invokes onWrite, so the upload does not race with writes.
+            if (mDeferredSyncScheduled) {
+                mAvoidedUploadCount.incrementAndGet();
+                return;
+            }
+            if (mDeferredSyncHandler == null) {
+                mDeferredSyncHandler = new Handler(Looper.myLooper());
+            }
+            mDeferredSyncHandler.postDelayed(mDeferredSyncTask, FSYNC_WINDOW_MS - elapsed);
+            mDeferredSyncScheduled = true;
         }
 
         @Override
         public void onRelease() {
+            if (mDeferredSyncScheduled) {
+                // The pending upload is merged into the upload below.
+                mDeferredSyncHandler.removeCallbacks(mDeferredSyncTask);
+                mDeferredSyncScheduled = false;
+                mAvoidedUploadCount.incrementAndGet();
+            }
             try {
-                tryFsync();
+                if (mStreamWriter != null) {
+                    finishStream();
+                } else {
+                    tryFsync();
+                }
             } catch (ErrnoException error) {
                 // Cannot recover from the error at onRelease. Client app should use fsync to
                 // ensure the provider writes data correctly.
                 Log.e(TAG, "Cannot recover from the error at onRelease.", error);
             } finally {
+                if (mDeferredSyncError != null) {
+                    Log.e(TAG, "A deferred upload failed before onRelease.", mDeferredSyncError);
+                }
                 if (mWriter != null) {
                     IoUtils.closeQuietly(mWriter);
                 }
+                if (mStreamWriter != null) {
+                    mStreamWriter.close();
+                }
+                mBlockCache.releaseEntry(mBlocks);
             }
         }
 
+        /**
+         * Returns the writer, and creates it if needed. If the descriptor edits the object, the
+         * current content of the object is copied to the writer when it is created.
+         */
+        private MtpFileWriter getWriter() throws IOException {
+            if (mWriter != null) {
+                return mWriter;
+            }
+            final MtpFileWriter writer = new MtpFileWriter(mContext, mDocumentId);
+            if (mLoadContent) {
+                try {
+                    ensureResolved();
+                    writer.load(mMtpManager, mIdentifier.mDeviceId, mIdentifier.mObjectHandle);
+                } catch (IOException error) {
+                    IoUtils.closeQuietly(writer);
+                    throw error;
+                }
+            }
+            mWriter = writer;
+            return mWriter;
+        }
+
         private void tryFsync() throws ErrnoException {
             try {
                 if (mWriter != null) {
-                    final MtpDeviceRecord device =
-                            getDeviceToolkit(mDatabase.createIdentifier(
-                                    mWriter.getDocumentId()).mDeviceId).mDeviceRecord;
-                    mWriter.flush(mMtpManager, mDatabase, device.operationsSupported);
+                    ensureResolved();
+                    if (!mWriter.flush(
+                            mMtpManager, mDatabase, mToolkit.mDeviceRecord.capabilities)) {
+                        return;
+                    }
+                    onUploaded();
                 }
             } catch (IOException e) {
                 Log.e(TAG, e.getMessage(), e);
                 throw new ErrnoException("onWrite", OsConstants.EIO);
             }
         }
+
+        private void finishStream() throws ErrnoException {
+            try {
+                if (mStreamWriter.finish(
+                        mDatabase, mToolkit.mDeviceRecord.capabilities)) {
+                    onUploaded();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+                throw new ErrnoException("onFsync", OsConstants.EIO);
+            }
+        }
+
+        private void onUploaded() {
+            mLastUploadTime = SystemClock.elapsedRealtime();
+            mUploadCount.incrementAndGet();
+            // The object is replaced with the new one, so the blocks of the previous object are
+            // no longer valid.
+            mBlockCache.invalidateObject(mIdentifier.mDeviceId, mIdentifier.mObjectHandle);
+            mToolkit.mPipeManager.invalidateSpool(mIdentifier.mObjectHandle);
+            mToolkit.mDocumentLoader.getSizeResolver().invalidate(mIdentifier.mObjectHandle);
+        }
+
+        /**
+         * Returns the size of the object, or -1 if the size is unknown.
+         */
+        private long getSize() throws FileNotFoundException {
+            ensureResolved();
+            if (!mSizeResolved) {
+                try {
+                    mSize = getFileSize(mDocumentId);
+                } catch (UnsupportedOperationException exception) {
+                    mSize = -1;
+                }
+                mSizeResolved = true;
+            }
+            return mSize;
+        }
+
+        private void ensureResolved() throws FileNotFoundException {
+            if (mBlocks.isInvalidated() || mToolkit.isClosed()) {
+                resolve();
+            }
+        }
+
+        private void resolve() throws FileNotFoundException {
+            mIdentifier = mDatabase.createIdentifier(mDocumentId);
+            mToolkit = getDeviceToolkit(mIdentifier.mDeviceId);
+            final int capabilities = mToolkit.mDeviceRecord.capabilities;
+            if (MtpDeviceRecord.hasCapabilities(
+                    capabilities, MtpDeviceRecord.CAPABILITY_GET_PARTIAL_OBJECT_64)) {
+                mReadStrategy = READ_PARTIAL_OBJECT_64;
+            } else if (MtpDeviceRecord.hasCapabilities(
+                    capabilities, MtpDeviceRecord.CAPABILITY_GET_PARTIAL_OBJECT)) {
+                mReadStrategy = READ_PARTIAL_OBJECT;
+            } else {
+                mReadStrategy = READ_UNSUPPORTED;
+            }
+            mSizeResolved = false;
+            final BlockCache.Entry previousBlocks = mBlocks;
+            mBlocks = mBlockCache.getEntry(mIdentifier.mDeviceId, mIdentifier.mObjectHandle);
+            if (previousBlocks != null) {
+                mBlockCache.releaseEntry(previousBlocks);
+            }
+        }
+    }
+
+    private static class SpoolProxyFileDescriptorCallback extends ProxyFileDescriptorCallback {
+        private final DocumentSpool mSpool;
+        private final HandlerThread mThread;
+
+        SpoolProxyFileDescriptorCallback(DocumentSpool spool, HandlerThread thread) {
+            mSpool = spool;
+            mThread = thread;
+        }
+
+        @Override
+        public long onGetSize() throws ErrnoException {
+            return mSpool.getSize();
+        }
+
+        @Override
+        public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+            try {
+                return mSpool.read(offset, size, data);
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+                throw new ErrnoException("onRead", OsConstants.EIO);
+            }
+        }
+
+        @Override
+        public void onRelease() {
+            mSpool.release();
+            mThread.quitSafely();
+        }
+    }
+
+    /**
+     * Exception thrown when the device does not provide an operation to read the given range.
+     */
+    private static class UnsupportedReadException extends IOException {
+        UnsupportedReadException() {
+            super("The device does not support partial reading for the range.");
+        }
     }
 }
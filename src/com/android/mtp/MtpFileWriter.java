@@ -22,33 +22,94 @@ import android.os.ParcelFileDescriptor;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
+import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.Preconditions;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 
+/**
+ * Writer that stages written bytes and uploads them to the device on flush.
+ * Bytes are staged in memory up to the memory threshold, and moved to a file in the cache
+ * directory when the content grows over the threshold.
+ */
 class MtpFileWriter implements AutoCloseable {
-    final ParcelFileDescriptor mCacheFd;
+    static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    final Context mContext;
     final String mDocumentId;
+    final int mMemoryThreshold;
     boolean mDirty;
 
-    MtpFileWriter(Context context, String documentId) throws IOException {
+    // Memory staging used until the content exceeds mMemoryThreshold.
+    byte[] mBuffer;
+    int mBufferSize;
+
+    // File staging. Null while the content is staged in memory.
+    ParcelFileDescriptor mCacheFd;
+
+    // Object info of the object that the staged content replaces.
+    private MtpObjectInfo mObjectInfo;
+    // Whether the object was deleted before the staged content was uploaded.
+    private boolean mObjectDeleted;
+
+    MtpFileWriter(Context context, String documentId) {
+        this(context, documentId, DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    @VisibleForTesting
+    MtpFileWriter(Context context, String documentId, int memoryThreshold) {
+        mContext = context;
         mDocumentId = documentId;
+        mMemoryThreshold = memoryThreshold;
         mDirty = false;
-        final File tempFile = File.createTempFile("mtp", "tmp", context.getCacheDir());
-        mCacheFd = ParcelFileDescriptor.open(
-                tempFile,
-                ParcelFileDescriptor.MODE_READ_WRITE |
-                ParcelFileDescriptor.MODE_TRUNCATE |
-                ParcelFileDescriptor.MODE_CREATE);
-        tempFile.delete();
+        mBuffer = new byte[0];
+        mBufferSize = 0;
     }
 
     String getDocumentId() {
         return mDocumentId;
     }
 
+    /**
+     * Copies the current content of the object to the cache file, so that the object can be read
+     * and partially modified through the writer.
+     */
+    void load(MtpManager manager, int deviceId, int objectHandle) throws IOException {
+        // The size of the object can exceed the memory threshold.
+        spill();
+        try (final ParcelFileDescriptor target = mCacheFd.dup()) {
+            manager.importFile(deviceId, objectHandle, target);
+        }
+    }
+
+    int read(long offset, int size, byte[] bytes) throws IOException, ErrnoException {
+        Preconditions.checkArgumentNonnegative(offset, "offset");
+        Preconditions.checkArgumentNonnegative(size, "size");
+        Preconditions.checkArgument(size <= bytes.length);
+        if (mCacheFd != null) {
+            return Os.pread(mCacheFd.getFileDescriptor(), bytes, 0, size, offset);
+        }
+        if (offset >= mBufferSize) {
+            return 0;
+        }
+        final int length = (int) Math.min(size, mBufferSize - offset);
+        System.arraycopy(mBuffer, (int) offset, bytes, 0, length);
+        return length;
+    }
+
+    long getSize() throws ErrnoException {
+        if (mCacheFd != null) {
+            return Os.fstat(mCacheFd.getFileDescriptor()).st_size;
+        }
+        return mBufferSize;
+    }
+
     int write(long offset, int size, byte[] bytes) throws IOException, ErrnoException {
         Preconditions.checkArgumentNonnegative(offset, "offset");
         Preconditions.checkArgumentNonnegative(size, "size");
@@ -57,52 +118,172 @@ class MtpFileWriter implements AutoCloseable {
             return 0;
         }
         mDirty = true;
-        Os.lseek(mCacheFd.getFileDescriptor(), offset, OsConstants.SEEK_SET);
-        return Os.write(mCacheFd.getFileDescriptor(), bytes, 0, size);
+        if (mCacheFd == null && offset + size <= mMemoryThreshold) {
+            final int end = (int) offset + size;
+            if (end > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.min(
+                        Math.max(end, Math.max(INITIAL_BUFFER_SIZE, mBuffer.length * 2)),
+                        mMemoryThreshold));
+            }
+            System.arraycopy(bytes, 0, mBuffer, (int) offset, size);
+            mBufferSize = Math.max(mBufferSize, end);
+            return size;
+        }
+        spill();
+        return Os.pwrite(mCacheFd.getFileDescriptor(), bytes, 0, size, offset);
     }
 
-    void flush(MtpManager manager, MtpDatabase database, int[] operationsSupported)
+    /**
+     * Uploads the staged content to the device if it has been modified.
+     * The content is uploaded as a new object, and the original object is deleted after the
+     * document points to the new object, so the original object remains if the upload fails.
+     * @return Whether the object was uploaded.
+     */
+    boolean flush(MtpManager manager, MtpDatabase database, int capabilities)
             throws IOException, ErrnoException {
         // Skip unnecessary flush.
         if (!mDirty) {
-            return;
+            return false;
         }
 
-        // Get the placeholder object info.
         final Identifier identifier = database.createIdentifier(mDocumentId);
-        final MtpObjectInfo placeholderObjectInfo =
-                manager.getObjectInfo(identifier.mDeviceId, identifier.mObjectHandle);
-
-        // Delete the target object info if it already exists (as a placeholder).
-        manager.deleteDocument(identifier.mDeviceId, identifier.mObjectHandle);
+        if (mObjectInfo == null || mObjectInfo.getObjectHandle() != identifier.mObjectHandle) {
+            mObjectInfo = manager.getObjectInfo(identifier.mDeviceId, identifier.mObjectHandle);
+            mObjectDeleted = false;
+        }
 
         // Create the target object info with a correct file size and upload the file.
-        final long size = Os.lseek(mCacheFd.getFileDescriptor(), 0, OsConstants.SEEK_END);
-        final MtpObjectInfo targetObjectInfo = new MtpObjectInfo.Builder(placeholderObjectInfo)
+        final long size = getSize();
+        final MtpObjectInfo targetObjectInfo = new MtpObjectInfo.Builder(mObjectInfo)
                 .setCompressedSize(size)
                 .build();
 
-        Os.lseek(mCacheFd.getFileDescriptor(), 0, OsConstants.SEEK_SET);
-        final int newObjectHandle = manager.createDocument(
-                identifier.mDeviceId, targetObjectInfo, mCacheFd);
-
-        final MtpObjectInfo newObjectInfo = manager.getObjectInfo(
-                identifier.mDeviceId, newObjectHandle);
-        final Identifier parentIdentifier =
-                database.getParentIdentifier(identifier.mDocumentId);
-        database.updateObject(
-                identifier.mDocumentId,
-                identifier.mDeviceId,
-                parentIdentifier.mDocumentId,
-                operationsSupported,
-                newObjectInfo,
-                size);
+        int newObjectHandle = -1;
+        if (!mObjectDeleted) {
+            try {
+                newObjectHandle = upload(manager, identifier.mDeviceId, targetObjectInfo);
+            } catch (SendObjectInfoFailure error) {
+                // The device may reject an object with the same name as the original one. Then
+                // the original object is replaced in place, and the content remains staged for
+                // the next flush if the upload fails.
+                manager.deleteDocument(identifier.mDeviceId, identifier.mObjectHandle);
+                mObjectDeleted = true;
+            }
+        }
+        if (mObjectDeleted) {
+            newObjectHandle = upload(manager, identifier.mDeviceId, targetObjectInfo);
+        }
+
+        final MtpObjectInfo newObjectInfo;
+        try {
+            newObjectInfo = manager.getObjectInfo(identifier.mDeviceId, newObjectHandle);
+            final Identifier parentIdentifier =
+                    database.getParentIdentifier(identifier.mDocumentId);
+            database.updateObject(
+                    identifier.mDocumentId,
+                    identifier.mDeviceId,
+                    parentIdentifier.mDocumentId,
+                    capabilities,
+                    newObjectInfo,
+                    size);
+        } catch (IOException error) {
+            // The document still points to the original object, so the new object is removed.
+            deleteQuietly(manager, identifier.mDeviceId, newObjectHandle);
+            throw error;
+        }
+        if (!mObjectDeleted) {
+            deleteQuietly(manager, identifier.mDeviceId, identifier.mObjectHandle);
+        }
 
+        mObjectInfo = newObjectInfo;
+        mObjectDeleted = false;
         mDirty = false;
+        return true;
     }
 
     @Override
     public void close() throws IOException {
-        mCacheFd.close();
+        mBuffer = null;
+        if (mCacheFd != null) {
+            mCacheFd.close();
+        }
+    }
+
+    /**
+     * Moves the content staged in memory to a file in the cache directory.
+     */
+    private void spill() throws IOException {
+        if (mCacheFd != null) {
+            return;
+        }
+        final File tempFile = File.createTempFile("mtp", "tmp", mContext.getCacheDir());
+        mCacheFd = ParcelFileDescriptor.open(
+                tempFile,
+                ParcelFileDescriptor.MODE_READ_WRITE |
+                ParcelFileDescriptor.MODE_TRUNCATE |
+                ParcelFileDescriptor.MODE_CREATE);
+        tempFile.delete();
+        try {
+            int written = 0;
+            while (written < mBufferSize) {
+                written += Os.pwrite(
+                        mCacheFd.getFileDescriptor(), mBuffer, written, mBufferSize - written,
+                        written);
+            }
+        } catch (ErrnoException error) {
+            throw new IOException(error);
+        }
+        mBuffer = null;
+        mBufferSize = 0;
+    }
+
+    private int upload(MtpManager manager, int deviceId, MtpObjectInfo objectInfo)
+            throws IOException, ErrnoException {
+        if (mCacheFd != null) {
+            Os.lseek(mCacheFd.getFileDescriptor(), 0, OsConstants.SEEK_SET);
+            return manager.createDocument(deviceId, objectInfo, mCacheFd);
+        } else {
+            return uploadBuffer(manager, deviceId, objectInfo);
+        }
+    }
+
+    private static void deleteQuietly(MtpManager manager, int deviceId, int objectHandle) {
+        try {
+            manager.deleteDocument(deviceId, objectHandle);
+        } catch (IOException error) {
+            Log.w(MtpDocumentsProvider.TAG, "Failed to delete an object.", error);
+        }
+    }
+
+    /**
+     * Sends the content staged in memory through a pipe.
+     */
+    private int uploadBuffer(MtpManager manager, int deviceId, MtpObjectInfo objectInfo)
+            throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createReliablePipe();
+        final byte[] buffer = mBuffer;
+        final int bufferSize = mBufferSize;
+        final Thread feeder = new Thread("MtpFileWriter") {
+            @Override
+            public void run() {
+                try (final ParcelFileDescriptor.AutoCloseOutputStream stream =
+                        new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                    stream.write(buffer, 0, bufferSize);
+                } catch (IOException error) {
+                    // The device stopped reading. The error is reported by createDocument.
+                    Log.w(MtpDocumentsProvider.TAG, "Failed to feed a document.", error);
+                }
+            }
+        };
+        feeder.start();
+        try (final ParcelFileDescriptor source = pipe[0]) {
+            return manager.createDocument(deviceId, objectInfo, source);
+        } finally {
+            try {
+                feeder.join();
+            } catch (InterruptedException error) {
+                throw new InterruptedIOException();
+            }
+        }
     }
 }
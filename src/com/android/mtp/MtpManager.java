@@ -46,6 +46,11 @@ import java.util.ArrayList;
 class MtpManager {
     final static int OBJECT_HANDLE_ROOT_CHILDREN = -1;
 
+    /**
+     * Parent object handle passed to getObjectHandles to obtain all objects in a storage.
+     */
+    final static int OBJECT_HANDLE_ALL = 0;
+
     /**
      * Subclass for PTP.
      */
@@ -138,10 +143,19 @@ class MtpManager {
 
     int[] getObjectHandles(int deviceId, int storageId, int parentObjectHandle)
             throws IOException {
+        return getObjectHandles(deviceId, storageId, 0 /* all format */, parentObjectHandle);
+    }
+
+    /**
+     * Returns handles of objects in the given format.
+     * @param format Object format, or 0 for all formats.
+     */
+    int[] getObjectHandles(int deviceId, int storageId, int format, int parentObjectHandle)
+            throws IOException {
         final MtpDevice device = getDevice(deviceId);
         synchronized (device) {
             return ensureNotNull(
-                    device.getObjectHandles(storageId, 0 /* all format */, parentObjectHandle),
+                    device.getObjectHandles(storageId, format, parentObjectHandle),
                     "Failed to fetch object handles.");
         }
     }
@@ -190,6 +204,21 @@ class MtpManager {
         }
     }
 
+    /**
+     * Deletes objects without letting other operations on the device interleave.
+     * @return Whether each object was deleted.
+     */
+    boolean[] deleteDocuments(int deviceId, int[] objectHandles) throws IOException {
+        final MtpDevice device = getDevice(deviceId);
+        final boolean[] results = new boolean[objectHandles.length];
+        synchronized (device) {
+            for (int i = 0; i < objectHandles.length; i++) {
+                results[i] = device.deleteObject(objectHandles[i]);
+            }
+        }
+        return results;
+    }
+
     int createDocument(int deviceId, MtpObjectInfo objectInfo,
             ParcelFileDescriptor source) throws IOException {
         final MtpDevice device = getDevice(deviceId);
@@ -201,6 +230,9 @@ class MtpManager {
             if (objectInfo.getFormat() != MtpConstants.FORMAT_ASSOCIATION) {
                 if (!device.sendObject(sendObjectInfoResult.getObjectHandle(),
                         sendObjectInfoResult.getCompressedSizeLong(), source)) {
+                    // Removes the object created by sendObjectInfo, so that a partial object does
+                    // not remain on the device.
+                    device.deleteObject(sendObjectInfoResult.getObjectHandle());
                     throw new IOException("Failed to send contents of a document");
                 }
             }
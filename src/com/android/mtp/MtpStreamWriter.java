@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.content.Context;
+import android.mtp.MtpObjectInfo;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.Preconditions;
+
+import libcore.io.IoUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Writer that streams sequential writes to the device through a pipe without staging them in a
+ * local file. The size of the object must be known before the upload starts, and the writer
+ * accepts only writes at the current end of the stream.
+ *
+ * The content is uploaded as a new object, and the original object is deleted only after the new
+ * object is completed, so the original object remains if the stream fails. If the device rejects
+ * the new object because it has the same name as the original one, the stream is staged in
+ * {@link MtpFileWriter} instead, and the writer replaces the original object at finish.
+ */
+class MtpStreamWriter implements AutoCloseable {
+    private static final int STAGING_BUFFER_SIZE = 64 * 1024;
+
+    private final Context mContext;
+    private final MtpManager mManager;
+    private final Identifier mIdentifier;
+    private final long mSize;
+    private final ParcelFileDescriptor[] mPipe;
+    private final Thread mUploadThread;
+    private long mPosition;
+    private boolean mFinished;
+
+    @GuardedBy("this")
+    private int mNewObjectHandle = -1;
+    @GuardedBy("this")
+    private IOException mError;
+    @GuardedBy("this")
+    private MtpFileWriter mFallbackWriter;
+
+    /**
+     * Starts uploading a new object of the given size that replaces the original object.
+     */
+    MtpStreamWriter(Context context, MtpManager manager, Identifier identifier, long size)
+            throws IOException {
+        mContext = context;
+        mManager = manager;
+        mIdentifier = identifier;
+        mSize = size;
+
+        final MtpObjectInfo placeholderObjectInfo =
+                manager.getObjectInfo(identifier.mDeviceId, identifier.mObjectHandle);
+        final MtpObjectInfo targetObjectInfo = new MtpObjectInfo.Builder(placeholderObjectInfo)
+                .setCompressedSize(size)
+                .build();
+
+        mPipe = ParcelFileDescriptor.createReliablePipe();
+        mUploadThread = new Thread("MtpStreamWriter") {
+            @Override
+            public void run() {
+                try (final ParcelFileDescriptor source = mPipe[0]) {
+                    try {
+                        final int handle = mManager.createDocument(
+                                mIdentifier.mDeviceId, targetObjectInfo, source);
+                        synchronized (MtpStreamWriter.this) {
+                            mNewObjectHandle = handle;
+                        }
+                    } catch (SendObjectInfoFailure error) {
+                        // The device rejected the object before reading the stream.
+                        final MtpFileWriter writer = stage(source);
+                        synchronized (MtpStreamWriter.this) {
+                            mFallbackWriter = writer;
+                        }
+                    }
+                } catch (IOException error) {
+                    synchronized (MtpStreamWriter.this) {
+                        mError = error;
+                    }
+                }
+            }
+        };
+        mUploadThread.start();
+    }
+
+    long getPosition() {
+        return mPosition;
+    }
+
+    boolean isCompleted() {
+        return mPosition == mSize;
+    }
+
+    int write(long offset, int size, byte[] bytes) throws IOException, ErrnoException {
+        Preconditions.checkArgumentNonnegative(size, "size");
+        Preconditions.checkArgument(size <= bytes.length);
+        if (offset != mPosition) {
+            throw new ErrnoException("write", OsConstants.ESPIPE);
+        }
+        if (mPosition + size > mSize) {
+            throw new ErrnoException("write", OsConstants.EFBIG);
+        }
+        int written = 0;
+        while (written < size) {
+            written += Os.write(mPipe[1].getFileDescriptor(), bytes, written, size - written);
+        }
+        mPosition += size;
+        return size;
+    }
+
+    /**
+     * Waits for the upload to complete, updates the database with the new object, and deletes the
+     * original object.
+     * @return Whether the upload was completed by the call.
+     */
+    boolean finish(MtpDatabase database, int capabilities) throws IOException {
+        if (mFinished) {
+            return false;
+        }
+        mFinished = true;
+        if (isCompleted()) {
+            mPipe[1].close();
+        } else {
+            mPipe[1].closeWithError("The stream ended before the declared size.");
+        }
+        final int newObjectHandle;
+        final MtpFileWriter fallbackWriter;
+        try {
+            mUploadThread.join();
+        } catch (InterruptedException error) {
+            throw new InterruptedIOException();
+        }
+        synchronized (this) {
+            if (mError != null) {
+                throw mError;
+            }
+            newObjectHandle = mNewObjectHandle;
+            fallbackWriter = mFallbackWriter;
+        }
+        if (!isCompleted()) {
+            throw new IOException("The stream ended before the declared size.");
+        }
+        if (fallbackWriter != null) {
+            try {
+                return fallbackWriter.flush(mManager, database, capabilities);
+            } catch (ErrnoException error) {
+                throw error.rethrowAsIOException();
+            }
+        }
+
+        try {
+            final MtpObjectInfo newObjectInfo =
+                    mManager.getObjectInfo(mIdentifier.mDeviceId, newObjectHandle);
+            final Identifier parentIdentifier =
+                    database.getParentIdentifier(mIdentifier.mDocumentId);
+            database.updateObject(
+                    mIdentifier.mDocumentId,
+                    mIdentifier.mDeviceId,
+                    parentIdentifier.mDocumentId,
+                    capabilities,
+                    newObjectInfo,
+                    mSize);
+        } catch (IOException error) {
+            // The document still points to the original object, so the new object is removed.
+            deleteQuietly(newObjectHandle);
+            throw error;
+        }
+        deleteQuietly(mIdentifier.mObjectHandle);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (!mFinished) {
+            mFinished = true;
+            try {
+                mPipe[1].closeWithError("The stream was aborted.");
+                mUploadThread.join();
+            } catch (IOException | InterruptedException error) {
+                Log.w(MtpDocumentsProvider.TAG, "Failed to abort a stream.", error);
+            }
+        }
+        synchronized (this) {
+            if (mFallbackWriter != null) {
+                IoUtils.closeQuietly(mFallbackWriter);
+            }
+        }
+    }
+
+    /**
+     * Copies the stream to a new MtpFileWriter.
+     */
+    private MtpFileWriter stage(ParcelFileDescriptor source) throws IOException {
+        final MtpFileWriter writer = new MtpFileWriter(mContext, mIdentifier.mDocumentId);
+        try {
+            final byte[] buffer = new byte[STAGING_BUFFER_SIZE];
+            long offset = 0;
+            while (true) {
+                final int read = Os.read(source.getFileDescriptor(), buffer, 0, buffer.length);
+                if (read <= 0) {
+                    break;
+                }
+                writer.write(offset, read, buffer);
+                offset += read;
+            }
+            // Throws if the stream was closed with an error.
+            source.checkError();
+            return writer;
+        } catch (ErrnoException error) {
+            IoUtils.closeQuietly(writer);
+            throw error.rethrowAsIOException();
+        } catch (IOException error) {
+            IoUtils.closeQuietly(writer);
+            throw error;
+        }
+    }
+
+    private void deleteQuietly(int objectHandle) {
+        try {
+            mManager.deleteDocument(mIdentifier.mDeviceId, objectHandle);
+        } catch (IOException error) {
+            Log.w(MtpDocumentsProvider.TAG, "Failed to delete an object.", error);
+        }
+    }
+}
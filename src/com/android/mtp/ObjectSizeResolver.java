@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.content.ContentResolver;
+import android.mtp.MtpObjectInfo;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Resolves 64-bit sizes of objects whose compressed size in object info is 0xFFFFFFFF.
+ * Listings store such objects with unknown size, and the resolver fills the size in on a low
+ * priority thread, or on demand when the object is opened. If the size property is not available
+ * for a format, the format is not asked again. Resolved sizes are kept until the object is
+ * modified or deleted.
+ */
+class ObjectSizeResolver implements AutoCloseable {
+    static final long UNKNOWN_COMPRESSED_SIZE = 0xffffffffl;
+
+    private final MtpManager mManager;
+    private final MtpDatabase mDatabase;
+    private final ContentResolver mResolver;
+    private final int mDeviceId;
+    private final boolean mPropertySupported;
+    private final ExecutorService mExecutor;
+
+    @GuardedBy("this")
+    private final SparseBooleanArray mUnsupportedFormats = new SparseBooleanArray();
+
+    /**
+     * Resolved sizes keyed by object handle.
+     */
+    @GuardedBy("this")
+    private final SparseLongArray mSizes = new SparseLongArray();
+
+    /**
+     * Parents whose children got sizes since the last notification.
+     */
+    @GuardedBy("this")
+    private final ArraySet<String> mChangedParentIds = new ArraySet<>();
+    @GuardedBy("this")
+    private int mPendingCount;
+
+    ObjectSizeResolver(MtpManager manager, MtpDatabase database, ContentResolver resolver,
+            MtpDeviceRecord device) {
+        mManager = manager;
+        mDatabase = database;
+        mResolver = resolver;
+        mDeviceId = device.deviceId;
+        mPropertySupported = MtpDeviceRecord.hasCapabilities(
+                device.capabilities,
+                MtpDeviceRecord.CAPABILITY_GET_OBJECT_PROP_DESC |
+                MtpDeviceRecord.CAPABILITY_GET_OBJECT_PROP_VALUE);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread("MtpObjectSizeResolver") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        runnable.run();
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Returns the size of the object without accessing the device.
+     * @return Size of the object, or -1 if it is not resolved yet.
+     */
+    synchronized long getCachedSize(MtpObjectInfo info) {
+        if (info.getCompressedSizeLong() != UNKNOWN_COMPRESSED_SIZE) {
+            return info.getCompressedSizeLong();
+        }
+        return mSizes.get(info.getObjectHandle(), -1);
+    }
+
+    /**
+     * Returns the size of the object, asking the device if needed.
+     * @return Size of the object, or -1 if the device cannot tell the size.
+     */
+    long getSize(MtpObjectInfo info) {
+        final long cachedSize = getCachedSize(info);
+        if (cachedSize >= 0 || !isSupported(info.getFormat())) {
+            return cachedSize;
+        }
+        try {
+            final long size = mManager.getObjectSizeLong(
+                    mDeviceId, info.getObjectHandle(), info.getFormat());
+            synchronized (this) {
+                mSizes.put(info.getObjectHandle(), size);
+            }
+            return size;
+        } catch (IOException error) {
+            Log.e(MtpDocumentsProvider.TAG, "Failed to get object size property.", error);
+            if (isPropertyUnsupported(info, error)) {
+                synchronized (this) {
+                    mUnsupportedFormats.put(info.getFormat(), true);
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Drops the resolved size of the object, when the object is modified or deleted.
+     */
+    synchronized void invalidate(int objectHandle) {
+        mSizes.delete(objectHandle);
+    }
+
+    /**
+     * Resolves the size of the object in background, and notifies the parent when the sizes of
+     * pending objects are stored. The object is ignored after the resolver is closed.
+     */
+    void resolveLater(final String parentDocumentId, final MtpObjectInfo info) {
+        if (!isSupported(info.getFormat())) {
+            return;
+        }
+        synchronized (this) {
+            // Checked under the lock that close() holds, so the task is not rejected.
+            if (mExecutor.isShutdown()) {
+                return;
+            }
+            mPendingCount++;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long size = getSize(info);
+                    final String[] parentIds;
+                    synchronized (ObjectSizeResolver.this) {
+                        if (size >= 0 && mDatabase.updateObjectSize(
+                                parentDocumentId, info.getObjectHandle(), size)) {
+                            mChangedParentIds.add(parentDocumentId);
+                        }
+                        if (--mPendingCount != 0) {
+                            return;
+                        }
+                        parentIds = mChangedParentIds.toArray(new String[mChangedParentIds.size()]);
+                        mChangedParentIds.clear();
+                    }
+                    for (final String parentId : parentIds) {
+                        mResolver.notifyChange(DocumentsContract.buildChildDocumentsUri(
+                                MtpDocumentsProvider.AUTHORITY, parentId), null, false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Resolves the size of the object now, and stores it to the database.
+     * @return Size of the object, or -1 if the device cannot tell the size.
+     */
+    long resolve(Identifier identifier) {
+        final MtpObjectInfo info;
+        final Identifier parentIdentifier;
+        try {
+            info = mManager.getObjectInfo(mDeviceId, identifier.mObjectHandle);
+            parentIdentifier = mDatabase.getParentIdentifier(identifier.mDocumentId);
+        } catch (IOException error) {
+            Log.e(MtpDocumentsProvider.TAG, "Failed to resolve object size.", error);
+            return -1;
+        }
+        final long size = getSize(info);
+        if (size >= 0 && mDatabase.updateObjectSize(
+                parentIdentifier.mDocumentId, identifier.mObjectHandle, size)) {
+            mResolver.notifyChange(DocumentsContract.buildChildDocumentsUri(
+                    MtpDocumentsProvider.AUTHORITY, parentIdentifier.mDocumentId), null, false);
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Whether the failure to get the size property means the device does not provide the property
+     * for the format. MtpDevice reports a missing property and a failed transfer with the same
+     * exception, so the failure is attributed to the property only if the device still answers
+     * for the object.
+     */
+    private boolean isPropertyUnsupported(MtpObjectInfo info, IOException error) {
+        if (error instanceof InterruptedIOException) {
+            return false;
+        }
+        try {
+            mManager.getObjectInfo(mDeviceId, info.getObjectHandle());
+            return true;
+        } catch (IOException probeError) {
+            return false;
+        }
+    }
+
+    private synchronized boolean isSupported(int format) {
+        return mPropertySupported && !mUnsupportedFormats.get(format);
+    }
+}
@@ -16,10 +16,17 @@
 
 package com.android.mtp;
 
+import android.annotation.Nullable;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -30,16 +37,41 @@ class PipeManager {
      */
     private final static long AWAIT_TERMINATION_TIMEOUT = 2000;
 
+    /**
+     * Maximum number of spools kept for reuse.
+     */
+    private final static int MAX_SPOOLS = 4;
+
+    /**
+     * Default maximum total size of spools kept for reuse.
+     */
+    final static long DEFAULT_SPOOL_BUDGET = 256 * 1024 * 1024;
+
     final ExecutorService mExecutor;
     final MtpDatabase mDatabase;
+    private final long mSpoolBudget;
+
+    /**
+     * Spools keyed by object handle in access order.
+     */
+    @GuardedBy("mSpools")
+    private final LinkedHashMap<Integer, DocumentSpool> mSpools =
+            new LinkedHashMap<>(MAX_SPOOLS, 0.75f, true);
+    @GuardedBy("mSpools")
+    private long mSpoolBytes;
 
     PipeManager(MtpDatabase database) {
         this(database, Executors.newSingleThreadExecutor());
     }
 
     PipeManager(MtpDatabase database, ExecutorService executor) {
+        this(database, executor, DEFAULT_SPOOL_BUDGET);
+    }
+
+    PipeManager(MtpDatabase database, ExecutorService executor, long spoolBudget) {
         this.mDatabase = database;
         this.mExecutor = executor;
+        this.mSpoolBudget = spoolBudget;
     }
 
     ParcelFileDescriptor readDocument(MtpManager model, Identifier identifier) throws IOException {
@@ -48,8 +80,86 @@ class PipeManager {
         return task.getReadingFileDescriptor();
     }
 
+    /**
+     * Returns a spool that downloads the document into a local file so that it can be read at
+     * random offsets. The spool is reused if the document has not been changed since the last
+     * download. Spools are kept for reuse within the byte budget, and a spool over the budget is
+     * deleted when its readers release it. The caller must release the returned spool.
+     * @return Spool, or null if the cache directory does not have space for the document.
+     */
+    @Nullable DocumentSpool spoolDocument(
+            MtpManager model, Identifier identifier, long size, long lastModified, File directory)
+            throws IOException {
+        synchronized (mSpools) {
+            final DocumentSpool cached = mSpools.get(identifier.mObjectHandle);
+            if (cached != null && cached.isValidFor(size, lastModified)) {
+                cached.acquire();
+                return cached;
+            }
+            if (cached != null) {
+                removeSpoolLocked(identifier.mObjectHandle).evict();
+            }
+            directory.mkdirs();
+            if (size > directory.getUsableSpace()) {
+                return null;
+            }
+            final DocumentSpool spool = new DocumentSpool(directory, size, lastModified);
+            final SpoolTask task = new SpoolTask(model, identifier, spool);
+            spool.acquire();
+            if (size <= mSpoolBudget) {
+                mSpools.put(identifier.mObjectHandle, spool);
+                mSpoolBytes += size;
+                final Iterator<Map.Entry<Integer, DocumentSpool>> it =
+                        mSpools.entrySet().iterator();
+                while ((mSpools.size() > MAX_SPOOLS || mSpoolBytes > mSpoolBudget) &&
+                        it.hasNext()) {
+                    final DocumentSpool eldest = it.next().getValue();
+                    mSpoolBytes -= eldest.getSize();
+                    eldest.evict();
+                    it.remove();
+                }
+            } else {
+                // Not kept for reuse, so the file is deleted when the readers release it.
+                spool.evict();
+            }
+            task.start();
+            mExecutor.execute(task);
+            return spool;
+        }
+    }
+
+    /**
+     * Drops the spool of the object so that the next read downloads the object again.
+     */
+    void invalidateSpool(int objectHandle) {
+        synchronized (mSpools) {
+            final DocumentSpool spool = removeSpoolLocked(objectHandle);
+            if (spool != null) {
+                spool.abort(new IOException("The document was changed."));
+            }
+        }
+    }
+
+    @GuardedBy("mSpools")
+    private @Nullable DocumentSpool removeSpoolLocked(int objectHandle) {
+        final DocumentSpool spool = mSpools.remove(objectHandle);
+        if (spool != null) {
+            mSpoolBytes -= spool.getSize();
+        }
+        return spool;
+    }
+
     ParcelFileDescriptor readThumbnail(MtpManager model, Identifier identifier) throws IOException {
-        final Task task = new GetThumbnailTask(model, identifier);
+        return readThumbnail(model, identifier, null, null);
+    }
+
+    /**
+     * Reads the thumbnail from the device, and stores it to the cache if the cache is specified.
+     */
+    ParcelFileDescriptor readThumbnail(
+            MtpManager model, Identifier identifier, @Nullable ThumbnailCache cache,
+            @Nullable String key) throws IOException {
+        final Task task = new GetThumbnailTask(model, identifier, cache, key);
         mExecutor.execute(task);
         return task.getReadingFileDescriptor();
     }
@@ -92,8 +202,14 @@ class PipeManager {
     }
 
     private static class GetThumbnailTask extends Task {
-        GetThumbnailTask(MtpManager model, Identifier identifier) throws IOException {
+        private final @Nullable ThumbnailCache mCache;
+        private final @Nullable String mKey;
+
+        GetThumbnailTask(MtpManager model, Identifier identifier, @Nullable ThumbnailCache cache,
+                @Nullable String key) throws IOException {
             super(model, identifier);
+            mCache = cache;
+            mKey = key;
         }
 
         @Override
@@ -102,8 +218,12 @@ class PipeManager {
                 try (final ParcelFileDescriptor.AutoCloseOutputStream stream =
                         new ParcelFileDescriptor.AutoCloseOutputStream(mDescriptors[1])) {
                     try {
-                        stream.write(mManager.getThumbnail(
-                                mIdentifier.mDeviceId, mIdentifier.mObjectHandle));
+                        final byte[] thumbnail = mManager.getThumbnail(
+                                mIdentifier.mDeviceId, mIdentifier.mObjectHandle);
+                        if (mCache != null) {
+                            mCache.put(mKey, thumbnail);
+                        }
+                        stream.write(thumbnail);
                     } catch (IOException error) {
                         mDescriptors[1].closeWithError("Failed to stream a thumbnail.");
                     }
@@ -114,7 +234,51 @@ class PipeManager {
         }
     }
 
+    private static class SpoolTask extends Task {
+        private final DocumentSpool mSpool;
+
+        SpoolTask(MtpManager model, Identifier identifier, DocumentSpool spool)
+                throws IOException {
+            super(model, identifier);
+            mSpool = spool;
+        }
+
+        /**
+         * Starts a thread copying bytes from the pipe to the spool.
+         */
+        void start() {
+            new Thread("MtpSpool") {
+                @Override
+                public void run() {
+                    mSpool.pump(mDescriptors[0]);
+                }
+            }.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mManager.importFile(
+                        mIdentifier.mDeviceId, mIdentifier.mObjectHandle, mDescriptors[1]);
+                mDescriptors[1].close();
+            } catch (IOException error) {
+                try {
+                    mDescriptors[1].closeWithError("Failed to spool a file.");
+                } catch (IOException closeError) {
+                    Log.w(MtpDocumentsProvider.TAG, closeError.getMessage());
+                }
+            }
+        }
+    }
+
     boolean close() throws InterruptedException {
+        synchronized (mSpools) {
+            for (final DocumentSpool spool : mSpools.values()) {
+                spool.abort(new IOException("The device was closed."));
+            }
+            mSpools.clear();
+            mSpoolBytes = 0;
+        }
         mExecutor.shutdownNow();
         return mExecutor.awaitTermination(AWAIT_TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS);
     }
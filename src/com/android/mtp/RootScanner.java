@@ -161,7 +161,7 @@ final class RootScanner {
                     try {
                         mDatabase.getMapper().startAddingDocuments(documentId);
                         if (mDatabase.getMapper().putStorageDocuments(
-                                documentId, device.operationsSupported, device.roots)) {
+                                documentId, device.capabilities, device.roots)) {
                             changed = true;
                         }
                         if (mDatabase.getMapper().stopAddingDocuments(documentId)) {
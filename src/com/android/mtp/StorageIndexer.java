@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.mtp.MtpObjectInfo;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Background indexer that loads all objects of a storage into the database.
+ * It enumerates the objects with a single GetObjectHandles request, fetches their object info in
+ * small batches so that interactive requests can take the device in between, and then puts the
+ * children of each folder with the same Mapper semantics as DocumentLoader. The indexer stops
+ * when it is closed or the battery is low.
+ */
+class StorageIndexer implements AutoCloseable {
+    static final int NUM_OBJECTS_PER_BATCH = DocumentLoader.NUM_LOADING_ENTRIES;
+
+    /**
+     * Pause between batches to let other requests to the device go first.
+     */
+    static final long BATCH_INTERVAL_MS = 20;
+
+    private final Context mContext;
+    private final MtpManager mManager;
+    private final ContentResolver mResolver;
+    private final MtpDatabase mDatabase;
+    private final DocumentLoader mDocumentLoader;
+    private final Identifier mStorage;
+    private final Thread mThread;
+    private volatile boolean mClosed;
+    private volatile boolean mBatteryLow;
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mBatteryLow = Intent.ACTION_BATTERY_LOW.equals(intent.getAction());
+        }
+    };
+
+    StorageIndexer(Context context, MtpManager manager, ContentResolver resolver,
+            MtpDatabase database, DocumentLoader documentLoader, Identifier storage) {
+        assert storage.mDocumentType == MtpDatabaseConstants.DOCUMENT_TYPE_STORAGE;
+        mContext = context;
+        mManager = manager;
+        mResolver = resolver;
+        mDatabase = database;
+        mDocumentLoader = documentLoader;
+        mStorage = storage;
+        mThread = new Thread("MtpStorageIndexer") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                // Watches the battery level with a receiver instead of querying the sticky
+                // broadcast for every batch.
+                final IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_BATTERY_LOW);
+                filter.addAction(Intent.ACTION_BATTERY_OKAY);
+                mContext.registerReceiver(mBatteryReceiver, filter);
+                try {
+                    final Intent battery = mContext.registerReceiver(
+                            null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+                    mBatteryLow = battery != null &&
+                            battery.getBooleanExtra(BatteryManager.EXTRA_BATTERY_LOW, false);
+                    index();
+                } catch (IOException error) {
+                    Log.e(MtpDocumentsProvider.TAG, "Failed to index a storage.", error);
+                } catch (InterruptedException error) {
+                    // Closed.
+                } finally {
+                    mContext.unregisterReceiver(mBatteryReceiver);
+                }
+            }
+        };
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    boolean isRunning() {
+        return mThread.isAlive();
+    }
+
+    /**
+     * Waits for the indexer to complete.
+     */
+    void join() throws InterruptedException {
+        mThread.join();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        mClosed = true;
+        mThread.interrupt();
+        mThread.join();
+    }
+
+    private void index() throws IOException, InterruptedException {
+        final int[] handles = mManager.getObjectHandles(
+                mStorage.mDeviceId, mStorage.mStorageId, MtpManager.OBJECT_HANDLE_ALL);
+
+        // Object info of children keyed by parent object handle.
+        final SparseArray<List<MtpObjectInfo>> children = new SparseArray<>();
+        for (int i = 0; i < handles.length; i++) {
+            if (i % NUM_OBJECTS_PER_BATCH == 0) {
+                checkContinue();
+                if (i != 0) {
+                    Thread.sleep(BATCH_INTERVAL_MS);
+                }
+            }
+            final MtpObjectInfo info;
+            try {
+                info = mManager.getObjectInfo(mStorage.mDeviceId, handles[i]);
+            } catch (IOException error) {
+                Log.e(MtpDocumentsProvider.TAG, "Failed to load object info", error);
+                continue;
+            }
+            // Objects just under the storage have parent 0, while some devices use 0xFFFFFFFF.
+            final int parent = info.getParent() == MtpManager.OBJECT_HANDLE_ROOT_CHILDREN ?
+                    MtpManager.OBJECT_HANDLE_ALL : info.getParent();
+            List<MtpObjectInfo> list = children.get(parent);
+            if (list == null) {
+                list = new ArrayList<>();
+                children.put(parent, list);
+            }
+            list.add(info);
+        }
+
+        // Puts folders from the top so that parent documents exist before their children.
+        final LinkedList<Identifier> folders = new LinkedList<>();
+        folders.add(mStorage);
+        while (!folders.isEmpty()) {
+            checkContinue();
+            final Identifier folder = folders.removeFirst();
+            final int handle =
+                    folder.mDocumentType == MtpDatabaseConstants.DOCUMENT_TYPE_STORAGE ?
+                    MtpManager.OBJECT_HANDLE_ALL : folder.mObjectHandle;
+            final List<MtpObjectInfo> infoList = children.get(handle);
+            if (infoList == null) {
+                continue;
+            }
+            final long[] objectSizeList = new long[infoList.size()];
+            for (int i = 0; i < infoList.size(); i++) {
+                objectSizeList[i] = mDocumentLoader.getSizeResolver().getSize(infoList.get(i));
+            }
+            try {
+                if (mDocumentLoader.putChildDocuments(
+                        folder,
+                        infoList.toArray(new MtpObjectInfo[infoList.size()]),
+                        objectSizeList)) {
+                    mResolver.notifyChange(DocumentsContract.buildChildDocumentsUri(
+                            MtpDocumentsProvider.AUTHORITY, folder.mDocumentId), null, false);
+                }
+            } catch (FileNotFoundException error) {
+                // The folder has been removed.
+                continue;
+            }
+            addChildFolders(folder, folders);
+        }
+    }
+
+    private void addChildFolders(Identifier folder, List<Identifier> folders) {
+        try (final Cursor cursor = mDatabase.queryChildDocuments(
+                MtpDatabase.strings(
+                        Document.COLUMN_DOCUMENT_ID,
+                        MtpDatabaseConstants.COLUMN_OBJECT_HANDLE,
+                        Document.COLUMN_MIME_TYPE),
+                folder.mDocumentId)) {
+            while (cursor.moveToNext()) {
+                if (!Document.MIME_TYPE_DIR.equals(cursor.getString(2))) {
+                    continue;
+                }
+                folders.add(new Identifier(
+                        folder.mDeviceId,
+                        folder.mStorageId,
+                        cursor.getInt(1),
+                        cursor.getString(0),
+                        MtpDatabaseConstants.DOCUMENT_TYPE_OBJECT));
+            }
+        }
+    }
+
+    private void checkContinue() throws InterruptedException {
+        if (mClosed || Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (mBatteryLow) {
+            Log.i(MtpDocumentsProvider.TAG, "Stop indexing a storage due to low battery.");
+            throw new InterruptedException();
+        }
+    }
+}
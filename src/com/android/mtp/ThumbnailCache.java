@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.annotation.Nullable;
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * On-disk LRU cache for thumbnails of MTP objects.
+ * Thumbnails are keyed by device key, storage ID, object handle, modified time and size, so that
+ * an entry is not served once the object is changed. Stale entries are evicted when the cache
+ * exceeds its budget. The cache also prefetches thumbnails on a low priority thread.
+ */
+class ThumbnailCache {
+    static final long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+    /**
+     * Maximum number of prefetch requests waiting in the queue.
+     */
+    private static final int MAX_PENDING_PREFETCHES = 256;
+
+    /**
+     * Suffix of files being written. Keys end with the object size, so no key has the suffix.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mBudget;
+    private final ExecutorService mPrefetchExecutor;
+
+    /**
+     * Lengths of cached files keyed by file name in access order.
+     */
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Long> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this")
+    private long mTotalBytes;
+
+    /**
+     * Device IDs of pending prefetch requests keyed by cache key.
+     */
+    @GuardedBy("this")
+    private final HashMap<String, Integer> mPendingPrefetches = new HashMap<>();
+
+    @GuardedBy("this")
+    private long mHitCount;
+    @GuardedBy("this")
+    private long mMissCount;
+    @GuardedBy("this")
+    private long mPrefetchCount;
+
+    ThumbnailCache(File directory) {
+        this(directory, DEFAULT_BUDGET);
+    }
+
+    @VisibleForTesting
+    ThumbnailCache(File directory, long budget) {
+        mDirectory = directory;
+        mBudget = budget;
+        mPrefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread("MtpThumbnailPrefetch") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                        runnable.run();
+                    }
+                };
+            }
+        });
+        loadIndex();
+    }
+
+    /**
+     * Creates a cache key for the object.
+     * @param deviceKey Device key, or null if the device does not have a key.
+     * @param lastModified Modified time of the object, or -1 if it is unknown.
+     * @param size Size of the object, or -1 if it is unknown. Sizes that object info cannot tell
+     *     are left out, so that the key does not change when the 64-bit size is resolved later.
+     * @return Cache key, or null if the thumbnail of the object must not be cached.
+     */
+    static @Nullable String createKey(@Nullable String deviceKey, int storageId,
+            int objectHandle, long lastModified, long size) {
+        // Device IDs are reused by other devices after the device is disconnected, and cached
+        // files outlive them, so objects of devices without a key are not cached.
+        if (deviceKey == null) {
+            return null;
+        }
+        final long keySize =
+                0 <= size && size < ObjectSizeResolver.UNKNOWN_COMPRESSED_SIZE ? size : -1;
+        return deviceKey.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + storageId + "_" +
+                objectHandle + "_" + lastModified + "_" + keySize;
+    }
+
+    /**
+     * Opens the cached thumbnail.
+     * @return File descriptor of the thumbnail, or null if the thumbnail is not cached.
+     */
+    @Nullable AssetFileDescriptor open(String key) {
+        final Long length;
+        synchronized (this) {
+            length = mFiles.get(key);
+            if (length == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+        final File file = new File(mDirectory, key);
+        try {
+            final ParcelFileDescriptor descriptor =
+                    ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            // Keeps the access order across restarts.
+            file.setLastModified(System.currentTimeMillis());
+            return new AssetFileDescriptor(descriptor, 0, length);
+        } catch (FileNotFoundException error) {
+            synchronized (this) {
+                if (mFiles.remove(key) != null) {
+                    mTotalBytes -= length;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores the thumbnail and evicts least recently used thumbnails over the budget.
+     */
+    void put(String key, byte[] bytes) {
+        if (bytes.length > mBudget) {
+            return;
+        }
+        mDirectory.mkdirs();
+        File temp = null;
+        try {
+            temp = File.createTempFile("thumbnail", TEMP_SUFFIX, mDirectory);
+            try (final FileOutputStream stream = new FileOutputStream(temp)) {
+                stream.write(bytes);
+            }
+            synchronized (this) {
+                if (!temp.renameTo(new File(mDirectory, key))) {
+                    throw new IOException("Failed to rename a thumbnail file.");
+                }
+                temp = null;
+                final Long previous = mFiles.put(key, (long) bytes.length);
+                if (previous != null) {
+                    mTotalBytes -= previous;
+                }
+                mTotalBytes += bytes.length;
+                evictLocked();
+            }
+        } catch (IOException error) {
+            Log.w(MtpDocumentsProvider.TAG, "Failed to cache a thumbnail.", error);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Fetches the thumbnail in background if it is not cached.
+     */
+    void prefetch(final MtpManager manager, final int deviceId, final int objectHandle,
+            final String key) {
+        synchronized (this) {
+            if (mFiles.containsKey(key) || mPendingPrefetches.containsKey(key) ||
+                    mPendingPrefetches.size() >= MAX_PENDING_PREFETCHES) {
+                return;
+            }
+            mPendingPrefetches.put(key, deviceId);
+        }
+        mPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ThumbnailCache.this) {
+                    // Check if the request is cancelled.
+                    if (mPendingPrefetches.remove(key) == null) {
+                        return;
+                    }
+                }
+                try {
+                    put(key, manager.getThumbnail(deviceId, objectHandle));
+                    synchronized (ThumbnailCache.this) {
+                        mPrefetchCount++;
+                    }
+                } catch (IOException error) {
+                    Log.w(MtpDocumentsProvider.TAG, "Failed to prefetch a thumbnail.", error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels pending prefetch requests for the device.
+     */
+    synchronized void cancelPrefetch(int deviceId) {
+        final Iterator<Map.Entry<String, Integer>> it = mPendingPrefetches.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() == deviceId) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops the prefetch thread.
+     */
+    void close() {
+        synchronized (this) {
+            mPendingPrefetches.clear();
+        }
+        mPrefetchExecutor.shutdownNow();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        final long total = mHitCount + mMissCount;
+        writer.println("ThumbnailCache:");
+        writer.println("  thumbnails: " + mFiles.size());
+        writer.println("  disk: " + mTotalBytes + " bytes");
+        writer.println("  hits: " + mHitCount + ", misses: " + mMissCount + ", hit ratio: " +
+                (total != 0 ? (double) mHitCount / total : 0));
+        writer.println("  prefetched: " + mPrefetchCount +
+                ", pending: " + mPendingPrefetches.size());
+    }
+
+    /**
+     * Loads cached files in the order of last access.
+     */
+    private synchronized void loadIndex() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (final File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            mFiles.put(file.getName(), file.length());
+            mTotalBytes += file.length();
+        }
+        evictLocked();
+    }
+
+    @GuardedBy("this")
+    private void evictLocked() {
+        final Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+        while (mTotalBytes > mBudget && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mTotalBytes -= entry.getValue();
+            it.remove();
+        }
+    }
+}
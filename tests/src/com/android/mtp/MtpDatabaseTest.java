@@ -17,6 +17,7 @@
 package com.android.mtp;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.media.MediaFile;
 import android.media.MediaFile.MediaFileType;
 import android.mtp.MtpConstants;
@@ -30,11 +31,13 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.FileNotFoundException;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static android.provider.DocumentsContract.Document.*;
 import static com.android.mtp.MtpDatabase.strings;
 import static com.android.mtp.MtpDatabaseConstants.*;
-import static com.android.mtp.TestUtil.OPERATIONS_SUPPORTED;
+import static com.android.mtp.TestUtil.CAPABILITIES;
 
 @SmallTest
 public class MtpDatabaseTest extends AndroidTestCase {
@@ -83,7 +86,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
 
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 1, "Storage", 1000, 2000, "")
         });
         mDatabase.getMapper().stopAddingDocuments("1");
@@ -145,7 +148,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
 
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 1, "Storage", 1000, 2000, ""),
                 new MtpRoot(0, 2, "Storage", 2000, 4000, ""),
                 new MtpRoot(0, 3, "/@#%&<>Storage", 3000, 6000,"")
@@ -196,7 +199,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestStorage("1");
 
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
                 createDocument(101, "image.jpg", MtpConstants.FORMAT_EXIF_JPEG, 2 * 1024 * 1024),
                 createDocument(102, "music.mp3", MtpConstants.FORMAT_MP3, 3 * 1024 * 1024)
@@ -272,7 +275,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
 
         // Put a document with empty supported operations.
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", new int[0], new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", 0, new MtpObjectInfo[] {
                 createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024)
         }, new long[] { 1024L });
         mDatabase.getMapper().stopAddingDocuments("2");
@@ -286,12 +289,10 @@ public class MtpDatabaseTest extends AndroidTestCase {
 
         // Put a document with writable operations.
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", new int[] {
-                MtpConstants.OPERATION_SEND_OBJECT,
-                MtpConstants.OPERATION_SEND_OBJECT_INFO,
-        }, new MtpObjectInfo[] {
-                createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024)
-        }, new long[] { 1024L });
+        mDatabase.getMapper().putChildDocuments(
+                0, "2", MtpDeviceRecord.CAPABILITY_WRITE, new MtpObjectInfo[] {
+                        createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024)
+                }, new long[] { 1024L });
         mDatabase.getMapper().stopAddingDocuments("2");
 
         try (final Cursor cursor =
@@ -303,11 +304,10 @@ public class MtpDatabaseTest extends AndroidTestCase {
 
         // Put a document with deletable operations.
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", new int[] {
-                MtpConstants.OPERATION_DELETE_OBJECT
-        }, new MtpObjectInfo[] {
-                createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024)
-        }, new long[] { 1024L });
+        mDatabase.getMapper().putChildDocuments(
+                0, "2", MtpDeviceRecord.CAPABILITY_DELETE_OBJECT, new MtpObjectInfo[] {
+                        createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024)
+                }, new long[] { 1024L });
         mDatabase.getMapper().stopAddingDocuments("2");
 
         try (final Cursor cursor =
@@ -328,7 +328,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         // Add device and two storages.
         addTestDevice();
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage A", 1000, 0, ""),
                 new MtpRoot(0, 101, "Storage B", 1001, 0, "")
         });
@@ -359,7 +359,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
 
         // Add two storages, but one's name is different from previous one.
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 200, "Storage A", 2000, 0, ""),
                 new MtpRoot(0, 202, "Storage C", 2002, 0, "")
         });
@@ -392,7 +392,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestStorage("1");
 
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
                 createDocument(101, "image.jpg", MtpConstants.FORMAT_EXIF_JPEG, 2 * 1024 * 1024),
                 createDocument(102, "music.mp3", MtpConstants.FORMAT_MP3, 3 * 1024 * 1024)
@@ -410,7 +410,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         }
 
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(200, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
                 createDocument(203, "video.mp4", MtpConstants.FORMAT_MP4_CONTAINER, 1024),
         }, new long[] { 1024L, 1024L });
@@ -434,6 +434,33 @@ public class MtpDatabaseTest extends AndroidTestCase {
         }
     }
 
+    public void testGetUnmappedDocumentsParent() throws Exception {
+        addTestDevice();
+        addTestStorage("1");
+
+        mDatabase.getMapper().startAddingDocuments("2");
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
+                createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
+                createDocument(101, "image.jpg", MtpConstants.FORMAT_EXIF_JPEG, 1024)
+        }, new long[] { 1024L, 1024L });
+        mDatabase.getMapper().stopAddingDocuments("2");
+        assertNull(mDatabase.getUnmappedDocumentsParent(0));
+
+        mDatabase.getMapper().clearMapping();
+        addTestDevice();
+        assertNull(mDatabase.getUnmappedDocumentsParent(0));
+        addTestStorage("1");
+        assertEquals("2", mDatabase.getUnmappedDocumentsParent(0).mDocumentId);
+        assertNull(mDatabase.getUnmappedDocumentsParent(1));
+
+        mDatabase.getMapper().startAddingDocuments("2");
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
+                createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024)
+        }, new long[] { 1024L });
+        mDatabase.getMapper().stopAddingDocuments("2");
+        assertNull(mDatabase.getUnmappedDocumentsParent(0));
+    }
+
     public void testRestoreIdForDifferentDevices() throws Exception {
         final String[] columns = new String[] {
                 DocumentsContract.Document.COLUMN_DOCUMENT_ID,
@@ -453,10 +480,10 @@ public class MtpDatabaseTest extends AndroidTestCase {
 
         mDatabase.getMapper().startAddingDocuments("1");
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage", 0, 0, "")
         });
-        mDatabase.getMapper().putStorageDocuments("2", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("2", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(1, 100, "Storage", 0, 0, "")
         });
 
@@ -497,10 +524,10 @@ public class MtpDatabaseTest extends AndroidTestCase {
 
         mDatabase.getMapper().startAddingDocuments("1");
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 200, "Storage", 2000, 0, "")
         });
-        mDatabase.getMapper().putStorageDocuments("2", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("2", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(1, 300, "Storage", 3000, 0, "")
         });
         mDatabase.getMapper().stopAddingDocuments("1");
@@ -543,7 +570,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
         addTestStorage("1");
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(50, "A", MtpConstants.FORMAT_ASSOCIATION, 0),
                 createDocument(51, "B", MtpConstants.FORMAT_ASSOCIATION, 0),
         }, new long[] { 0L, 0L });
@@ -552,10 +579,10 @@ public class MtpDatabaseTest extends AndroidTestCase {
         // Put note.txt in each directory.
         mDatabase.getMapper().startAddingDocuments("3");
         mDatabase.getMapper().startAddingDocuments("4");
-        mDatabase.getMapper().putChildDocuments(0, "3", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "3", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(100, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
         }, new long[] { 1024L });
-        mDatabase.getMapper().putChildDocuments(0, "4", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "4", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(101, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
         }, new long[] { 1024L });
 
@@ -566,7 +593,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
         addTestStorage("1");
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(50, "A", MtpConstants.FORMAT_ASSOCIATION, 0),
                 createDocument(51, "B", MtpConstants.FORMAT_ASSOCIATION, 0),
         }, new long[] { 0L, 0L });
@@ -575,10 +602,10 @@ public class MtpDatabaseTest extends AndroidTestCase {
         // Add note.txt in each directory again.
         mDatabase.getMapper().startAddingDocuments("3");
         mDatabase.getMapper().startAddingDocuments("4");
-        mDatabase.getMapper().putChildDocuments(0, "3", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "3", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(200, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
         }, new long[] { 1024L });
-        mDatabase.getMapper().putChildDocuments(0, "4", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "4", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(201, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
         }, new long[] { 1024L });
         mDatabase.getMapper().stopAddingDocuments("3");
@@ -617,7 +644,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
 
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage", 0, 0, ""),
         });
         mDatabase.getMapper().clearMapping();
@@ -631,7 +658,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         }
 
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 200, "Storage", 2000, 0, ""),
         });
         mDatabase.getMapper().clearMapping();
@@ -639,7 +666,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
 
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 300, "Storage", 3000, 0, ""),
         });
         mDatabase.getMapper().stopAddingDocuments("1");
@@ -680,7 +707,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         // Add a device and two storages that has same name.
         addTestDevice();
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 200, "Storage", 2000, 0, ""),
                 new MtpRoot(0, 201, "Storage", 2001, 0, ""),
         });
@@ -713,13 +740,13 @@ public class MtpDatabaseTest extends AndroidTestCase {
         // The client code should be able to replace existing rows with new information.
         // Add one.
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage A", 0, 0, ""),
         });
         mDatabase.getMapper().stopAddingDocuments("1");
         // Replace it.
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage B", 1000, 1000, ""),
         });
         mDatabase.getMapper().stopAddingDocuments("1");
@@ -758,7 +785,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         // Add one.
         addTestDevice();
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage A", 0, 0, ""),
         });
         mDatabase.getMapper().clearMapping();
@@ -772,11 +799,11 @@ public class MtpDatabaseTest extends AndroidTestCase {
 
             // Add one.
             mDatabase.getMapper().startAddingDocuments("1");
-            mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+            mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                     new MtpRoot(0, 101, "Storage B", 1000, 1000, ""),
             });
             // Add one more before resolving unmapped documents.
-            mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+            mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                     new MtpRoot(0, 102, "Storage B", 1000, 1000, ""),
             });
             mDatabase.getMapper().stopAddingDocuments("1");
@@ -818,7 +845,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         }
 
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage A", 0, 0, "")
         });
         mDatabase.getMapper().stopAddingDocuments("1");
@@ -833,7 +860,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         }
 
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage A", 0, 0, ""),
                 new MtpRoot(0, 101, "Storage B", 0, 0, "")
         });
@@ -853,13 +880,13 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
 
         mDatabase.getMapper().startAddingDocuments("1");
-        mDatabase.getMapper().putStorageDocuments("1", OPERATIONS_SUPPORTED, new MtpRoot[] {
+        mDatabase.getMapper().putStorageDocuments("1", CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage A", 0, 0, ""),
         });
         mDatabase.getMapper().stopAddingDocuments("1");
 
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(200, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
         }, new long[] { 1024L });
         mDatabase.getMapper().stopAddingDocuments("2");
@@ -872,13 +899,13 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestStorage("1");
 
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(200, "dir", MtpConstants.FORMAT_ASSOCIATION, 1024),
         }, new long[] { 1024L });
         mDatabase.getMapper().stopAddingDocuments("2");
 
         mDatabase.getMapper().startAddingDocuments("3");
-        mDatabase.getMapper().putChildDocuments(0, "3", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "3", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(200, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
         }, new long[] { 1024L });
         mDatabase.getMapper().stopAddingDocuments("3");
@@ -909,7 +936,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         assertEquals(
                 "3",
                 mDatabase.putNewDocument(
-                        0, "2", OPERATIONS_SUPPORTED,
+                        0, "2", CAPABILITIES,
                         createDocument(200, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
                         1024L));
 
@@ -929,7 +956,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
 
         mDatabase.getMapper().startAddingDocuments("2");
         mDatabase.putNewDocument(
-                0, "2", OPERATIONS_SUPPORTED,
+                0, "2", CAPABILITIES,
                 createDocument(201, "note.txt", MtpConstants.FORMAT_TEXT, 1024),
                 1024L);
         mDatabase.getMapper().stopAddingDocuments("2");
@@ -1045,7 +1072,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
         addTestStorage("1");
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(100, "apple.txt", MtpConstants.FORMAT_TEXT, 1024),
                 createDocument(101, "orange.txt", MtpConstants.FORMAT_TEXT, 1024),
         }, new long[] { 1024L, 1024L });
@@ -1075,7 +1102,7 @@ public class MtpDatabaseTest extends AndroidTestCase {
         addTestDevice();
         addTestStorage("1");
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
                 createDocument(100, "apple.txt", MtpConstants.FORMAT_TEXT, 1024),
                 createDocument(101, "orange.txt", MtpConstants.FORMAT_TEXT, 1024),
         }, new long[] { 1024L, 1024L });
@@ -1097,11 +1124,31 @@ public class MtpDatabaseTest extends AndroidTestCase {
         }
     }
 
+    public void testCleanDatabase_keepMappedDocuments() throws FileNotFoundException {
+        addTestDevice();
+        addTestStorage("1");
+        mDatabase.getMapper().startAddingDocuments("2");
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
+                createDocument(100, "apple.txt", MtpConstants.FORMAT_TEXT, 1024),
+        }, new long[] { 1024L });
+        mDatabase.getMapper().stopAddingDocuments("2");
+
+        // Documents mapped before the cleanup are in use.
+        mDatabase.cleanDatabase(new Uri[0]);
+
+        try (final Cursor cursor = mDatabase.queryChildDocuments(
+                strings(COLUMN_DOCUMENT_ID, Document.COLUMN_DISPLAY_NAME), "2")) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToNext();
+            assertEquals("3", cursor.getString(0));
+        }
+    }
+
     public void testFormatCodeForMpeg() throws FileNotFoundException {
         addTestDevice();
         addTestStorage("1");
         mDatabase.getMapper().startAddingDocuments("2");
-        mDatabase.getMapper().putChildDocuments(0, "2", OPERATIONS_SUPPORTED, new MtpObjectInfo[] {
+        mDatabase.getMapper().putChildDocuments(0, "2", CAPABILITIES, new MtpObjectInfo[] {
             createDocument(100, "audio.m4a", MtpConstants.FORMAT_MPEG, 1000),
             createDocument(101, "video.m4v", MtpConstants.FORMAT_MPEG, 1000),
             createDocument(102, "unknown.mp4", MtpConstants.FORMAT_MPEG, 1000),
@@ -1134,6 +1181,62 @@ public class MtpDatabaseTest extends AndroidTestCase {
         }
     }
 
+    public void testQueryDuringMapping() throws Exception {
+        // WAL is only enabled for the database in file.
+        MtpDatabase.deleteDatabase(getContext());
+        final MtpDatabase database =
+                new MtpDatabase(getContext(), MtpDatabaseConstants.FLAG_DATABASE_IN_FILE);
+        try {
+            TestUtil.addTestDevice(database);
+            TestUtil.addTestStorage(database, "1");
+
+            final CountDownLatch mapping = new CountDownLatch(1);
+            final CountDownLatch queried = new CountDownLatch(1);
+            final boolean[] queriedInMapping = new boolean[1];
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    final SQLiteDatabase sqliteDatabase = database.getSQLiteDatabase();
+                    // Holds the write transaction of the mapping open until the query ends.
+                    sqliteDatabase.beginTransaction();
+                    try {
+                        database.getMapper().startAddingDocuments("2");
+                        database.getMapper().putChildDocuments(
+                                0, "2", CAPABILITIES, new MtpObjectInfo[] {
+                                        createDocument(
+                                                100, "note.txt", MtpConstants.FORMAT_TEXT, 1024)
+                                }, new long[] { 1024L });
+                        mapping.countDown();
+                        queriedInMapping[0] = queried.await(5, TimeUnit.SECONDS);
+                        sqliteDatabase.setTransactionSuccessful();
+                    } catch (FileNotFoundException | InterruptedException error) {
+                        mapping.countDown();
+                    } finally {
+                        sqliteDatabase.endTransaction();
+                    }
+                }
+            };
+            thread.start();
+
+            assertTrue(mapping.await(5, TimeUnit.SECONDS));
+            try (final Cursor cursor =
+                    database.queryChildDocuments(strings(COLUMN_DISPLAY_NAME), "1")) {
+                assertEquals(1, cursor.getCount());
+            }
+            // The document put by the mapping is not committed yet.
+            try (final Cursor cursor =
+                    database.queryChildDocuments(strings(COLUMN_DISPLAY_NAME), "2")) {
+                assertEquals(0, cursor.getCount());
+            }
+            queried.countDown();
+            thread.join();
+            assertTrue(queriedInMapping[0]);
+        } finally {
+            database.close();
+            MtpDatabase.deleteDatabase(getContext());
+        }
+    }
+
     private void addTestDevice() throws FileNotFoundException {
         TestUtil.addTestDevice(mDatabase);
     }
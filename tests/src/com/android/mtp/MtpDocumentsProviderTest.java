@@ -16,11 +16,22 @@
 
 package com.android.mtp;
 
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.mtp.MtpConstants;
 import android.mtp.MtpObjectInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.Bundle;
+import android.os.Debug;
 import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
 import android.os.storage.StorageManager;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Path;
@@ -31,11 +42,15 @@ import android.provider.DocumentsContract;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static com.android.mtp.MtpDatabase.strings;
@@ -543,6 +558,357 @@ public class MtpDocumentsProviderTest extends AndroidTestCase {
                         MtpDocumentsProvider.AUTHORITY, "1")));
     }
 
+    public void testDeleteDocuments() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                    .setName("a.txt")
+                    .setObjectHandle(1)
+                    .setParent(-1)
+                    .build(),
+                new MtpObjectInfo.Builder()
+                    .setName("b.txt")
+                    .setObjectHandle(2)
+                    .setParent(-1)
+                    .build(),
+                new MtpObjectInfo.Builder()
+                    .setName("c.txt")
+                    .setObjectHandle(3)
+                    .setParent(-1)
+                    .build()
+        });
+
+        final String[] deletedIds = mProvider.deleteDocuments(new String[] { "3", "4", "100" });
+        assertTrue(Arrays.equals(new String[] { "3", "4" }, deletedIds));
+        assertEquals(1, mResolver.getChangeCount(
+                DocumentsContract.buildChildDocumentsUri(
+                        MtpDocumentsProvider.AUTHORITY, "1")));
+        assertEquals(1, mResolver.getChangeCount(
+                DocumentsContract.buildChildDocumentsUri(
+                        MtpDocumentsProvider.AUTHORITY, "2")));
+        try (final Cursor cursor = mProvider.queryDocument("5", null)) {
+            assertEquals(1, cursor.getCount());
+        }
+        try {
+            mProvider.queryDocument("3", null).close();
+            fail();
+        } catch (FileNotFoundException error) {}
+    }
+
+    public void testQueryDocuments() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                    .setName("a.txt")
+                    .setObjectHandle(1)
+                    .setCompressedSize(10)
+                    .setParent(-1)
+                    .build(),
+                new MtpObjectInfo.Builder()
+                    .setName("b.txt")
+                    .setObjectHandle(2)
+                    .setCompressedSize(20)
+                    .setParent(-1)
+                    .build()
+        });
+        final String[] ids = new String[] { "4", "100", "3" };
+        final String[] projection = new String[] {
+                Document.COLUMN_DISPLAY_NAME, Document.COLUMN_SIZE
+        };
+
+        Bundle result = mProvider.queryDocuments(ids, projection, 0);
+        assertTrue(Arrays.equals(
+                new String[] { "4", "3" },
+                result.getStringArray(MtpDocumentsProvider.EXTRA_DOCUMENT_IDS)));
+        assertTrue(Arrays.equals(
+                new String[] { "b.txt", "a.txt" },
+                result.getStringArray(Document.COLUMN_DISPLAY_NAME)));
+        assertTrue(Arrays.equals(
+                new long[] { 20, 10 },
+                result.getLongArray(Document.COLUMN_SIZE)));
+        assertEquals(-1, result.getInt(MtpDocumentsProvider.EXTRA_NEXT_INDEX));
+
+        result = mProvider.queryDocuments(ids, projection, 2);
+        assertTrue(Arrays.equals(
+                new String[] { "3" },
+                result.getStringArray(MtpDocumentsProvider.EXTRA_DOCUMENT_IDS)));
+    }
+
+    public void testGetChanges() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                    .setName("test.txt")
+                    .setObjectHandle(1)
+                    .setParent(-1)
+                    .build()
+        });
+
+        Bundle result = mProvider.getChanges(-1);
+        assertTrue(result.getBoolean(MtpDocumentsProvider.EXTRA_RESET));
+        assertEquals(0, result.getStringArray(MtpDocumentsProvider.EXTRA_DOCUMENT_IDS).length);
+        final long token = result.getLong(MtpDocumentsProvider.EXTRA_TOKEN);
+
+        result = mProvider.getChanges(token);
+        assertFalse(result.getBoolean(MtpDocumentsProvider.EXTRA_RESET));
+        assertEquals(0, result.getStringArray(MtpDocumentsProvider.EXTRA_DOCUMENT_IDS).length);
+        assertEquals(token, result.getLong(MtpDocumentsProvider.EXTRA_TOKEN));
+
+        mProvider.deleteDocument("3");
+        result = mProvider.getChanges(token);
+        assertFalse(result.getBoolean(MtpDocumentsProvider.EXTRA_RESET));
+        assertFalse(result.getBoolean(MtpDocumentsProvider.EXTRA_HAS_MORE));
+        assertTrue(Arrays.equals(
+                new String[] { "3" },
+                result.getStringArray(MtpDocumentsProvider.EXTRA_DOCUMENT_IDS)));
+        assertTrue(Arrays.equals(
+                new String[] { "2" },
+                result.getStringArray(MtpDocumentsProvider.EXTRA_PARENT_DOCUMENT_IDS)));
+        assertTrue(Arrays.equals(
+                new int[] { MtpDatabaseConstants.CHANGE_TYPE_DELETED },
+                result.getIntArray(MtpDocumentsProvider.EXTRA_CHANGE_TYPES)));
+        assertTrue(result.getLong(MtpDocumentsProvider.EXTRA_TOKEN) > token);
+
+        // Tokens newer than the journal come from an older database.
+        result = mProvider.getChanges(result.getLong(MtpDocumentsProvider.EXTRA_TOKEN) + 1);
+        assertTrue(result.getBoolean(MtpDocumentsProvider.EXTRA_RESET));
+    }
+
+    public void testIndexStorage() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        mMtpManager.setObjectInfo(0, new MtpObjectInfo.Builder()
+                .setName("dir")
+                .setObjectHandle(1)
+                .setFormat(MtpConstants.FORMAT_ASSOCIATION)
+                .setParent(0)
+                .build());
+        mMtpManager.setObjectInfo(0, new MtpObjectInfo.Builder()
+                .setName("a.txt")
+                .setObjectHandle(2)
+                .setParent(1)
+                .build());
+        mMtpManager.setObjectInfo(0, new MtpObjectInfo.Builder()
+                .setName("b.txt")
+                .setObjectHandle(3)
+                .setParent(0)
+                .build());
+        mMtpManager.setObjectHandles(0, 0, MtpManager.OBJECT_HANDLE_ALL, new int[] { 1, 2, 3 });
+
+        mProvider.indexStorage("2").join();
+
+        final String dirId;
+        try (final Cursor cursor = mDatabase.queryChildDocuments(
+                strings(Document.COLUMN_DOCUMENT_ID, Document.COLUMN_DISPLAY_NAME), "2")) {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToNext();
+            assertEquals("dir", cursor.getString(1));
+            dirId = cursor.getString(0);
+            cursor.moveToNext();
+            assertEquals("b.txt", cursor.getString(1));
+        }
+        try (final Cursor cursor = mDatabase.queryChildDocuments(
+                strings(Document.COLUMN_DISPLAY_NAME), dirId)) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToNext();
+            assertEquals("a.txt", cursor.getString(0));
+        }
+    }
+
+    public void testIndexStorage_batteryLow() throws Exception {
+        final Context context = new ContextWrapper(getContext()) {
+            @Override
+            public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+                if (receiver == null && filter.hasAction(Intent.ACTION_BATTERY_CHANGED)) {
+                    return new Intent(Intent.ACTION_BATTERY_CHANGED)
+                            .putExtra(BatteryManager.EXTRA_BATTERY_LOW, true);
+                }
+                return super.registerReceiver(receiver, filter);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY, context);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        mMtpManager.setObjectInfo(0, new MtpObjectInfo.Builder()
+                .setName("a.txt")
+                .setObjectHandle(1)
+                .setParent(0)
+                .build());
+        mMtpManager.setObjectHandles(0, 0, MtpManager.OBJECT_HANDLE_ALL, new int[] { 1 });
+
+        final int requestCount = mMtpManager.getObjectInfoRequestCount();
+        mProvider.indexStorage("2").join();
+
+        assertEquals(requestCount, mMtpManager.getObjectInfoRequestCount());
+        try (final Cursor cursor = mDatabase.queryChildDocuments(
+                strings(Document.COLUMN_DOCUMENT_ID), "2")) {
+            assertEquals(0, cursor.getCount());
+        }
+    }
+
+    public void testIndexStorage_yield() throws Exception {
+        final ArrayList<Long> requestTimes = new ArrayList<>();
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            MtpObjectInfo getObjectInfo(int deviceId, int objectHandle) throws IOException {
+                if ("MtpStorageIndexer".equals(Thread.currentThread().getName())) {
+                    requestTimes.add(System.nanoTime());
+                }
+                return super.getObjectInfo(deviceId, objectHandle);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        final int[] handles = new int[StorageIndexer.NUM_OBJECTS_PER_BATCH + 1];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = i + 1;
+            mMtpManager.setObjectInfo(0, new MtpObjectInfo.Builder()
+                    .setName("file" + i + ".txt")
+                    .setObjectHandle(handles[i])
+                    .setParent(0)
+                    .build());
+        }
+        mMtpManager.setObjectHandles(0, 0, MtpManager.OBJECT_HANDLE_ALL, handles);
+
+        mProvider.indexStorage("2").join();
+
+        // The indexer pauses between batches so that other requests can take the device.
+        assertEquals(handles.length, requestTimes.size());
+        final int batch = StorageIndexer.NUM_OBJECTS_PER_BATCH;
+        assertTrue(requestTimes.get(batch) - requestTimes.get(batch - 1) >=
+                TimeUnit.MILLISECONDS.toNanos(StorageIndexer.BATCH_INTERVAL_MS));
+        try (final Cursor cursor = mDatabase.queryChildDocuments(
+                strings(Document.COLUMN_DOCUMENT_ID), "2")) {
+            assertEquals(handles.length, cursor.getCount());
+        }
+    }
+
+    public void testIndexStorage_close() throws Exception {
+        final CountDownLatch requested = new CountDownLatch(1);
+        final CountDownLatch never = new CountDownLatch(1);
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            MtpObjectInfo getObjectInfo(int deviceId, int objectHandle) throws IOException {
+                if ("MtpStorageIndexer".equals(Thread.currentThread().getName())) {
+                    requested.countDown();
+                    try {
+                        never.await();
+                    } catch (InterruptedException error) {
+                        throw new IOException(error);
+                    }
+                }
+                return super.getObjectInfo(deviceId, objectHandle);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        mMtpManager.setObjectInfo(0, new MtpObjectInfo.Builder()
+                .setName("a.txt")
+                .setObjectHandle(1)
+                .setParent(0)
+                .build());
+        mMtpManager.setObjectHandles(0, 0, MtpManager.OBJECT_HANDLE_ALL, new int[] { 1 });
+
+        final StorageIndexer indexer = mProvider.indexStorage("2");
+        assertTrue(requested.await(1000, TimeUnit.MILLISECONDS));
+        indexer.close();
+
+        assertFalse(indexer.isRunning());
+        try (final Cursor cursor = mDatabase.queryChildDocuments(
+                strings(Document.COLUMN_DOCUMENT_ID), "2")) {
+            assertEquals(0, cursor.getCount());
+        }
+    }
+
+    public void testQueryChildDocuments_mimeTypes() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        final int[] handles = new int[30];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = i + 1;
+            final String name;
+            final int format;
+            if (i % 6 == 0) {
+                name = "image" + i + ".jpg";
+                format = MtpConstants.FORMAT_EXIF_JPEG;
+            } else if (i % 6 == 1) {
+                // The MIME type of an object of undefined format is resolved from the name.
+                name = "image" + i + ".jpg";
+                format = MtpConstants.FORMAT_UNDEFINED;
+            } else {
+                name = "text" + i + ".txt";
+                format = MtpConstants.FORMAT_TEXT;
+            }
+            mMtpManager.setObjectInfo(0, new MtpObjectInfo.Builder()
+                    .setName(name)
+                    .setObjectHandle(handles[i])
+                    .setFormat(format)
+                    .setParent(-1)
+                    .build());
+        }
+        mMtpManager.setObjectHandles(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, handles);
+
+        final int requestCount = mMtpManager.getObjectInfoRequestCount();
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putStringArray(
+                DocumentsContract.QUERY_ARG_MIME_TYPES, new String[] { "image/jpeg" });
+        try (final Cursor cursor = mProvider.queryChildDocuments(
+                "1", strings(Document.COLUMN_DISPLAY_NAME), queryArgs)) {
+            assertEquals(10, cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertTrue(cursor.getString(0).endsWith(".jpg"));
+            }
+            assertTrue(Arrays.equals(
+                    new String[] { DocumentsContract.QUERY_ARG_MIME_TYPES },
+                    cursor.getExtras().getStringArray(ContentResolver.EXTRA_HONORED_ARGS)));
+        }
+        assertEquals(10, mMtpManager.getObjectInfoRequestCount() - requestCount);
+    }
+
+    public void testQueryChildDocuments_wildcardMimeTypes() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        mMtpManager.setObjectInfo(0, new MtpObjectInfo.Builder()
+                .setName("image.heic")
+                .setObjectHandle(1)
+                .setFormat(MtpConstants.FORMAT_UNDEFINED)
+                .setParent(-1)
+                .build());
+        mMtpManager.setObjectHandles(
+                0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, new int[] { 1 });
+
+        // Formats of "image/*" cannot be listed, so the device lists all objects.
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putStringArray(
+                DocumentsContract.QUERY_ARG_MIME_TYPES, new String[] { "image/*" });
+        try (final Cursor cursor = mProvider.queryChildDocuments(
+                "1", strings(Document.COLUMN_DISPLAY_NAME), queryArgs)) {
+            assertNull(cursor.getExtras().getStringArray(ContentResolver.EXTRA_HONORED_ARGS));
+        }
+        assertNull(FormatFilter.create(new String[] { "image/*" }));
+        assertNotNull(FormatFilter.create(new String[] { "image/jpeg" }));
+    }
+
     public void testOpenDocument() throws Exception {
         setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
         setupRoots(0, new MtpRoot[] {
@@ -602,6 +968,283 @@ public class MtpDocumentsProviderTest extends AndroidTestCase {
         }
     }
 
+    public void testOpenDocument_blockCache() throws Exception {
+        final int[] readCount = new int[1];
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            long getPartialObject(
+                    int deviceId, int objectHandle, long offset, long size, byte[] buffer)
+                    throws IOException {
+                readCount[0]++;
+                return super.getPartialObject(deviceId, objectHandle, offset, size, buffer);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        final byte[] bytes = "Hello world".getBytes();
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                        .setName("test.txt")
+                        .setObjectHandle(1)
+                        .setCompressedSize(bytes.length)
+                        .setParent(-1)
+                        .build()
+        });
+        mMtpManager.setImportFileBytes(0, 1, bytes);
+        for (int i = 0; i < 3; i++) {
+            try (final ParcelFileDescriptor fd = mProvider.openDocument("3", "r", null)) {
+                final byte[] readBytes = new byte[5];
+                assertEquals(6, Os.lseek(fd.getFileDescriptor(), 6, OsConstants.SEEK_SET));
+                assertEquals(5, Os.read(fd.getFileDescriptor(), readBytes, 0, 5));
+                assertTrue(Arrays.equals("world".getBytes(), readBytes));
+            }
+        }
+        assertEquals(1, readCount[0]);
+
+        // Deleting the object invalidates its blocks.
+        mProvider.deleteDocument("3");
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                        .setName("test.txt")
+                        .setObjectHandle(1)
+                        .setCompressedSize(bytes.length)
+                        .setParent(-1)
+                        .build()
+        });
+        try (final ParcelFileDescriptor fd = mProvider.openDocument("4", "r", null)) {
+            final byte[] readBytes = new byte[5];
+            assertEquals(5, Os.read(fd.getFileDescriptor(), readBytes, 0, 5));
+        }
+        assertEquals(2, readCount[0]);
+    }
+
+    public void testOpenDocument_blockCacheShortBlock() throws Exception {
+        final int[] readCount = new int[1];
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            long getPartialObject(
+                    int deviceId, int objectHandle, long offset, long size, byte[] buffer)
+                    throws IOException {
+                // The device returns fewer bytes than requested for the first request.
+                readCount[0]++;
+                return super.getPartialObject(deviceId, objectHandle, offset,
+                        readCount[0] == 1 ? Math.min(size, 5) : size, buffer);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        final byte[] bytes = "Hello world".getBytes();
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                        .setName("test.txt")
+                        .setObjectHandle(1)
+                        .setCompressedSize(bytes.length)
+                        .setParent(-1)
+                        .build()
+        });
+        mMtpManager.setImportFileBytes(0, 1, bytes);
+        final ProxyFileDescriptorCallback callback =
+                mProvider.createProxyFileDescriptorCallback("3");
+        final byte[] readBytes = new byte[5];
+        assertEquals(5, callback.onRead(0, 5, readBytes));
+        assertTrue(Arrays.equals("Hello".getBytes(), readBytes));
+
+        // The short block is not taken as the end of the object.
+        assertEquals(5, callback.onRead(6, 5, readBytes));
+        assertTrue(Arrays.equals("world".getBytes(), readBytes));
+        assertEquals(2, readCount[0]);
+
+        // The block that ends at the end of the object is cached.
+        assertEquals(5, callback.onRead(6, 5, readBytes));
+        assertEquals(2, readCount[0]);
+        callback.onRelease();
+    }
+
+    public void testOpenDocument_noAllocationInSteadyState() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        final byte[] bytes = "Hello world".getBytes();
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                        .setName("test.txt")
+                        .setObjectHandle(1)
+                        .setCompressedSize(bytes.length)
+                        .setParent(-1)
+                        .build()
+        });
+        mMtpManager.setImportFileBytes(0, 1, bytes);
+        final ProxyFileDescriptorCallback callback =
+                mProvider.createProxyFileDescriptorCallback("3");
+        final byte[] readBytes = new byte[5];
+        // Warm up the block cache.
+        assertEquals(5, callback.onRead(6, 5, readBytes));
+
+        int readCount = 0;
+        long size = 0;
+        final int allocCount;
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < 100; i++) {
+                readCount += callback.onRead(6, 5, readBytes);
+                size += callback.onGetSize();
+            }
+            allocCount = Debug.getThreadAllocCount();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals(0, allocCount);
+        assertEquals(500, readCount);
+        assertEquals(100 * bytes.length, size);
+        assertTrue(Arrays.equals("world".getBytes(), readBytes));
+    }
+
+    public void testOpenDocument_spool() throws Exception {
+        final int[] importCount = new int[1];
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            void importFile(int deviceId, int objectHandle, ParcelFileDescriptor target)
+                    throws IOException {
+                importCount[0]++;
+                super.importFile(deviceId, objectHandle, target);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        mMtpManager.addValidDevice(new MtpDeviceRecord(
+                0, "Device", null /* deviceKey */, false /* unopened */,
+                new MtpRoot[] { new MtpRoot(0, 0, "Storage", 0, 0, "") },
+                new int[] { MtpConstants.OPERATION_GET_OBJECT },
+                null));
+        mProvider.openDevice(0);
+        mResolver.waitForNotification(ROOTS_URI, 1);
+        final byte[] bytes = "Hello world".getBytes();
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                        .setName("test.txt")
+                        .setObjectHandle(1)
+                        .setCompressedSize(bytes.length)
+                        .setParent(-1)
+                        .build()
+        });
+        mMtpManager.setImportFileBytes(0, 1, bytes);
+        for (int i = 0; i < 2; i++) {
+            try (final ParcelFileDescriptor fd = mProvider.openDocument("3", "r", null)) {
+                final byte[] readBytes = new byte[5];
+                assertEquals(6, Os.lseek(fd.getFileDescriptor(), 6, OsConstants.SEEK_SET));
+                assertEquals(5, Os.read(fd.getFileDescriptor(), readBytes, 0, 5));
+                assertTrue(Arrays.equals("world".getBytes(), readBytes));
+
+                assertEquals(0, Os.lseek(fd.getFileDescriptor(), 0, OsConstants.SEEK_SET));
+                assertEquals(5, Os.read(fd.getFileDescriptor(), readBytes, 0, 5));
+                assertTrue(Arrays.equals("Hello".getBytes(), readBytes));
+            }
+        }
+        // The second open is served from the spool.
+        assertEquals(1, importCount[0]);
+    }
+
+    public void testOpenDocumentThumbnail_cache() throws Exception {
+        final int[] thumbnailCount = new int[1];
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            byte[] getThumbnail(int deviceId, int objectHandle) throws IOException {
+                thumbnailCount[0]++;
+                return super.getThumbnail(deviceId, objectHandle);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, "device_key", new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        final byte[] bytes = "Thumbnail".getBytes();
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                        .setName("image.jpg")
+                        .setObjectHandle(1)
+                        .setCompressedSize(1024)
+                        .setParent(-1)
+                        .build()
+        });
+        mMtpManager.setThumbnail(0, 1, bytes);
+        for (int i = 0; i < 3; i++) {
+            try (final AssetFileDescriptor fd =
+                    mProvider.openDocumentThumbnail("3", null, null)) {
+                final byte[] readBytes = new byte[bytes.length];
+                assertEquals(bytes.length, Os.read(
+                        fd.getParcelFileDescriptor().getFileDescriptor(),
+                        readBytes, 0, readBytes.length));
+                assertTrue(Arrays.equals(bytes, readBytes));
+            }
+        }
+        assertEquals(1, thumbnailCount[0]);
+    }
+
+    public void testOpenDocumentThumbnail_noDeviceKey() throws Exception {
+        final int[] thumbnailCount = new int[1];
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            byte[] getThumbnail(int deviceId, int objectHandle) throws IOException {
+                thumbnailCount[0]++;
+                return super.getThumbnail(deviceId, objectHandle);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 0, "Storage", 0, 0, "")
+        });
+        final byte[] bytes = "Thumbnail".getBytes();
+        setupDocuments(0, 0, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "1", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                        .setName("image.jpg")
+                        .setObjectHandle(1)
+                        .setCompressedSize(1024)
+                        .setParent(-1)
+                        .build()
+        });
+        mMtpManager.setThumbnail(0, 1, bytes);
+        for (int i = 0; i < 2; i++) {
+            try (final AssetFileDescriptor fd =
+                    mProvider.openDocumentThumbnail("3", null, null)) {
+                final byte[] readBytes = new byte[bytes.length];
+                assertEquals(bytes.length, Os.read(
+                        fd.getParcelFileDescriptor().getFileDescriptor(),
+                        readBytes, 0, readBytes.length));
+            }
+        }
+        // Device IDs are reused by other devices, so thumbnails are not cached without a key.
+        assertEquals(2, thumbnailCount[0]);
+    }
+
+    public void testThumbnailCache_keys() throws Exception {
+        final File directory = new File(getContext().getCacheDir(), "thumbnail_cache_test");
+        directory.mkdirs();
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        // A key starting with the name of temporary files survives reloading the index.
+        final String key = ThumbnailCache.createKey("tmp", 1, 2, -1, 1024);
+        final ThumbnailCache cache = new ThumbnailCache(directory);
+        cache.put(key, "Hello".getBytes());
+        cache.close();
+        final ThumbnailCache reloadedCache = new ThumbnailCache(directory);
+        try (final AssetFileDescriptor fd = reloadedCache.open(key)) {
+            assertNotNull(fd);
+        } finally {
+            reloadedCache.close();
+        }
+
+        // The key of an object stays the same after its 64-bit size is resolved.
+        assertEquals(
+                ThumbnailCache.createKey("device", 1, 2, -1, -1),
+                ThumbnailCache.createKey("device", 1, 2, -1, 5L * 1024 * 1024 * 1024));
+    }
+
     public void testOpenDocument_writing() throws Exception {
         setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
         setupRoots(0, new MtpRoot[] {
@@ -627,6 +1270,162 @@ public class MtpDocumentsProviderTest extends AndroidTestCase {
         }
     }
 
+    public void testOpenDocument_coalescedFsync() throws Exception {
+        final int[] uploadCount = new int[1];
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            int createDocument(int deviceId, MtpObjectInfo objectInfo,
+                    ParcelFileDescriptor source) throws IOException {
+                uploadCount[0]++;
+                return super.createDocument(deviceId, objectInfo, source);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage", 0, 0, "")
+        });
+        final String documentId = mProvider.createDocument("2", "text/plain", "test.txt");
+        uploadCount[0] = 0;
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "w", null)) {
+            for (int i = 0; i < 3; i++) {
+                Os.write(fd.getFileDescriptor(), "Hello".getBytes(), 0, 5);
+                fd.getFileDescriptor().sync();
+            }
+        }
+        // Every fsync uploads the document by default.
+        assertEquals(3, uploadCount[0]);
+
+        uploadCount[0] = 0;
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "wd", null)) {
+            for (int i = 0; i < 3; i++) {
+                Os.write(fd.getFileDescriptor(), "Hello".getBytes(), 0, 5);
+                fd.getFileDescriptor().sync();
+            }
+        }
+        // The first fsync and the release upload the document.
+        assertEquals(2, uploadCount[0]);
+    }
+
+    public void testOpenDocument_streaming() throws Exception {
+        final int[] uploadCount = new int[1];
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            int createDocument(int deviceId, MtpObjectInfo objectInfo,
+                    ParcelFileDescriptor source) throws IOException {
+                uploadCount[0]++;
+                return super.createDocument(deviceId, objectInfo, source);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage", 0, 0, "")
+        });
+        final String documentId = mProvider.createDocument("2", "text/plain", "test.txt");
+        uploadCount[0] = 0;
+        mProvider.declareSize(documentId, 11);
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "w", null)) {
+            Os.write(fd.getFileDescriptor(), "Hello".getBytes(), 0, 5);
+            // Fsync before the end of the stream does not fail.
+            fd.getFileDescriptor().sync();
+            Os.write(fd.getFileDescriptor(), " world".getBytes(), 0, 6);
+        }
+        assertEquals(1, uploadCount[0]);
+        try (final Cursor cursor = mProvider.queryDocument(
+                documentId, strings(Document.COLUMN_SIZE))) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(11, cursor.getLong(0));
+        }
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "r", null)) {
+            final byte[] readBytes = new byte[11];
+            assertEquals(11, Os.read(fd.getFileDescriptor(), readBytes, 0, 11));
+            assertTrue(Arrays.equals("Hello world".getBytes(), readBytes));
+        }
+    }
+
+    public void testOpenDocument_streamingDuplicateName() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage", 0, 0, "")
+        });
+        final String documentId = mProvider.createDocument("2", "text/plain", "test.txt");
+        // The device rejects the new object since the original object has the same name.
+        mMtpManager.setRejectsDuplicateNames(true);
+        mProvider.declareSize(documentId, 11);
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "w", null)) {
+            Os.write(fd.getFileDescriptor(), "Hello".getBytes(), 0, 5);
+            Os.write(fd.getFileDescriptor(), " world".getBytes(), 0, 6);
+            fd.getFileDescriptor().sync();
+        }
+        try (final Cursor cursor = mProvider.queryDocument(
+                documentId, strings(Document.COLUMN_SIZE))) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(11, cursor.getLong(0));
+        }
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "r", null)) {
+            final byte[] readBytes = new byte[11];
+            assertEquals(11, Os.read(fd.getFileDescriptor(), readBytes, 0, 11));
+            assertTrue(Arrays.equals("Hello world".getBytes(), readBytes));
+        }
+    }
+
+    public void testOpenDocument_streamingAborted() throws Exception {
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage", 0, 0, "")
+        });
+        final String documentId = mProvider.createDocument("2", "text/plain", "test.txt");
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "w", null)) {
+            Os.write(fd.getFileDescriptor(), "Hello world".getBytes(), 0, 11);
+        }
+        mProvider.declareSize(documentId, 11);
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "w", null)) {
+            Os.write(fd.getFileDescriptor(), "Bye".getBytes(), 0, 3);
+        }
+        // The stream ended before the declared size, so the original object remains.
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "r", null)) {
+            final byte[] readBytes = new byte[11];
+            assertEquals(11, Os.read(fd.getFileDescriptor(), readBytes, 0, 11));
+            assertTrue(Arrays.equals("Hello world".getBytes(), readBytes));
+        }
+    }
+
+    public void testOpenDocument_readWrite() throws Exception {
+        final int[] importCount = new int[1];
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            void importFile(int deviceId, int objectHandle, ParcelFileDescriptor target)
+                    throws IOException {
+                importCount[0]++;
+                super.importFile(deviceId, objectHandle, target);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage", 0, 0, "")
+        });
+        final String documentId = mProvider.createDocument("2", "text/plain", "test.txt");
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "w", null)) {
+            Os.write(fd.getFileDescriptor(), "Hello world".getBytes(), 0, 11);
+        }
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "rw", null)) {
+            final byte[] readBytes = new byte[5];
+            assertEquals(11, fd.getStatSize());
+            assertEquals(5, Os.pread(fd.getFileDescriptor(), readBytes, 0, 5, 0));
+            assertTrue(Arrays.equals("Hello".getBytes(), readBytes));
+            // The object is copied at the first write, not when it is opened.
+            assertEquals(0, importCount[0]);
+            assertEquals(1, Os.pwrite(fd.getFileDescriptor(), "W".getBytes(), 0, 1, 6));
+            assertEquals(1, importCount[0]);
+            assertEquals(5, Os.pread(fd.getFileDescriptor(), readBytes, 0, 5, 6));
+            assertTrue(Arrays.equals("World".getBytes(), readBytes));
+        }
+        try (final ParcelFileDescriptor fd = mProvider.openDocument(documentId, "r", null)) {
+            final byte[] readBytes = new byte[11];
+            assertEquals(11, Os.read(fd.getFileDescriptor(), readBytes, 0, 11));
+            assertTrue(Arrays.equals("Hello World".getBytes(), readBytes));
+        }
+    }
+
     public void testBusyDevice() throws Exception {
         mMtpManager = new TestMtpManager(getContext()) {
             @Override
@@ -772,6 +1571,42 @@ public class MtpDocumentsProviderTest extends AndroidTestCase {
         }
     }
 
+    public void testCreateDocument_conflictWithCachedSiblings() throws Exception {
+        final ArrayList<String> sentNames = new ArrayList<>();
+        mMtpManager = new TestMtpManager(getContext()) {
+            @Override
+            int createDocument(int deviceId, MtpObjectInfo objectInfo,
+                    ParcelFileDescriptor source) throws IOException {
+                sentNames.add(objectInfo.getName());
+                return super.createDocument(deviceId, objectInfo, source);
+            }
+        };
+        setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        setupRoots(0, new MtpRoot[] {
+                new MtpRoot(0, 100, "Storage A", 100, 100, null)
+        });
+        setupDocuments(0, 100, MtpManager.OBJECT_HANDLE_ROOT_CHILDREN, "2", new MtpObjectInfo[] {
+                new MtpObjectInfo.Builder()
+                        .setName("note.txt")
+                        .setObjectHandle(1)
+                        .setStorageId(100)
+                        .build(),
+                new MtpObjectInfo.Builder()
+                        .setName("NOTE (1 ).txt")
+                        .setObjectHandle(2)
+                        .setStorageId(100)
+                        .build()
+        });
+        final String documentId = mProvider.createDocument("2", "text/plain", "note.txt");
+        assertEquals(1, sentNames.size());
+        assertEquals("note (2 ).txt", sentNames.get(0));
+        try (final Cursor cursor = mProvider.queryDocument(
+                documentId, strings(Document.COLUMN_DISPLAY_NAME))) {
+            assertTrue(cursor.moveToNext());
+            assertEquals("note (2 ).txt", cursor.getString(0));
+        }
+    }
+
     public void testCreateDocument_noWritingSupport() throws Exception {
         setupProvider(MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
         mMtpManager.addValidDevice(new MtpDeviceRecord(
@@ -844,6 +1679,9 @@ public class MtpDocumentsProviderTest extends AndroidTestCase {
                                 .build()
                 });
 
+        // The size is resolved in background.
+        mResolver.waitForNotification(
+                DocumentsContract.buildChildDocumentsUri(MtpDocumentsProvider.AUTHORITY, "2"), 1);
         final Cursor cursor = mProvider.queryDocument("3", new String[] {
                 DocumentsContract.Document.COLUMN_SIZE
         });
@@ -924,11 +1762,15 @@ public class MtpDocumentsProviderTest extends AndroidTestCase {
     }
 
     private void setupProvider(int flag) {
+        setupProvider(flag, getContext());
+    }
+
+    private void setupProvider(int flag, Context context) {
         mDatabase = new MtpDatabase(getContext(), flag);
         mProvider = new MtpDocumentsProvider();
         final StorageManager storageManager = getContext().getSystemService(StorageManager.class);
         assertTrue(mProvider.onCreateForTesting(
-                getContext(),
+                context,
                 mResources,
                 mMtpManager,
                 mResolver,
@@ -951,9 +1793,14 @@ public class MtpDocumentsProviderTest extends AndroidTestCase {
 
     private String[] setupRoots(int deviceId, MtpRoot[] roots)
             throws InterruptedException, TimeoutException, IOException {
+        return setupRoots(deviceId, null /* deviceKey */, roots);
+    }
+
+    private String[] setupRoots(int deviceId, String deviceKey, MtpRoot[] roots)
+            throws InterruptedException, TimeoutException, IOException {
         final int changeCount = mResolver.getChangeCount(ROOTS_URI);
         mMtpManager.addValidDevice(
-                new MtpDeviceRecord(deviceId, "Device", null /* deviceKey */, false /* unopened */,
+                new MtpDeviceRecord(deviceId, "Device", deviceKey, false /* unopened */,
                 roots, OPERATIONS_SUPPORTED, null));
         mProvider.openDevice(deviceId);
         mResolver.waitForNotification(ROOTS_URI, changeCount + 1);
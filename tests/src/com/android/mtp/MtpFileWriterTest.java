@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mtp;
+
+import android.mtp.MtpConstants;
+import android.mtp.MtpObjectInfo;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.android.mtp.TestUtil.CAPABILITIES;
+
+@MediumTest
+public class MtpFileWriterTest extends AndroidTestCase {
+    private static final int MEMORY_THRESHOLD = 8;
+
+    private TestMtpManager mManager;
+    private MtpDatabase mDatabase;
+
+    @Override
+    public void setUp() throws Exception {
+        mManager = new TestMtpManager(getContext());
+        mDatabase = new MtpDatabase(getContext(), MtpDatabaseConstants.FLAG_DATABASE_IN_MEMORY);
+        TestUtil.addTestDevice(mDatabase);
+        TestUtil.addTestStorage(mDatabase, "1");
+        final MtpObjectInfo info = new MtpObjectInfo.Builder()
+                .setObjectHandle(1)
+                .setStorageId(100)
+                .setParent(-1)
+                .setFormat(MtpConstants.FORMAT_TEXT)
+                .setName("note.txt")
+                .build();
+        mManager.setObjectInfo(0, info);
+        mDatabase.getMapper().startAddingDocuments("2");
+        mDatabase.getMapper().putChildDocuments(
+                0, "2", CAPABILITIES, new MtpObjectInfo[] { info }, new long[] { 0 });
+        mDatabase.getMapper().stopAddingDocuments("2");
+    }
+
+    @Override
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    public void testWrite_underThreshold() throws Exception {
+        try (final MtpFileWriter writer =
+                new MtpFileWriter(getContext(), "3", MEMORY_THRESHOLD)) {
+            assertEquals(5, writer.write(0, 5, "Hello".getBytes()));
+            assertEquals(2, writer.write(5, 2, "!!".getBytes()));
+            assertNull(writer.mCacheFd);
+            assertEquals(7, writer.getSize());
+            assertRead(writer, 0, "Hello!!");
+            assertEquals(0, writer.read(7, 1, new byte[1]));
+        }
+    }
+
+    public void testWrite_crossThreshold() throws Exception {
+        try (final MtpFileWriter writer =
+                new MtpFileWriter(getContext(), "3", MEMORY_THRESHOLD)) {
+            assertEquals(5, writer.write(0, 5, "Hello".getBytes()));
+            assertNull(writer.mCacheFd);
+            // The content staged in memory is moved to the file with the new bytes.
+            assertEquals(6, writer.write(5, 6, " world".getBytes()));
+            assertNotNull(writer.mCacheFd);
+            assertEquals(11, writer.getSize());
+            assertRead(writer, 0, "Hello world");
+        }
+    }
+
+    public void testRead_afterSpill() throws Exception {
+        try (final MtpFileWriter writer =
+                new MtpFileWriter(getContext(), "3", MEMORY_THRESHOLD)) {
+            assertEquals(11, writer.write(0, 11, "Hello world".getBytes()));
+            assertNotNull(writer.mCacheFd);
+            // Writes within the threshold go to the file after the spill.
+            assertEquals(1, writer.write(0, 1, "J".getBytes()));
+            assertRead(writer, 0, "Jello");
+            assertRead(writer, 6, "world");
+            assertEquals(0, writer.read(11, 1, new byte[1]));
+        }
+    }
+
+    public void testFlush_memory() throws Exception {
+        try (final MtpFileWriter writer =
+                new MtpFileWriter(getContext(), "3", MEMORY_THRESHOLD)) {
+            assertEquals(5, writer.write(0, 5, "Hello".getBytes()));
+            assertTrue(writer.flush(mManager, mDatabase, CAPABILITIES));
+            assertNull(writer.mCacheFd);
+            assertTrue(Arrays.equals(
+                    "Hello".getBytes(),
+                    mManager.getImportFileBytes(0, TestMtpManager.CREATED_DOCUMENT_HANDLE)));
+            // The writer is not dirty after the flush.
+            assertFalse(writer.flush(mManager, mDatabase, CAPABILITIES));
+            assertEquals(
+                    TestMtpManager.CREATED_DOCUMENT_HANDLE,
+                    mDatabase.createIdentifier("3").mObjectHandle);
+        }
+    }
+
+    public void testFlush_file() throws Exception {
+        try (final MtpFileWriter writer =
+                new MtpFileWriter(getContext(), "3", MEMORY_THRESHOLD)) {
+            assertEquals(11, writer.write(0, 11, "Hello world".getBytes()));
+            assertTrue(writer.flush(mManager, mDatabase, CAPABILITIES));
+            assertTrue(Arrays.equals(
+                    "Hello world".getBytes(),
+                    mManager.getImportFileBytes(0, TestMtpManager.CREATED_DOCUMENT_HANDLE)));
+        }
+    }
+
+    public void testFlush_duplicateName() throws Exception {
+        mManager.setRejectsDuplicateNames(true);
+        try (final MtpFileWriter writer =
+                new MtpFileWriter(getContext(), "3", MEMORY_THRESHOLD)) {
+            assertEquals(5, writer.write(0, 5, "Hello".getBytes()));
+            // The original object is deleted before the upload as the device rejects the name.
+            assertTrue(writer.flush(mManager, mDatabase, CAPABILITIES));
+            assertTrue(Arrays.equals(
+                    "Hello".getBytes(),
+                    mManager.getImportFileBytes(0, TestMtpManager.CREATED_DOCUMENT_HANDLE)));
+            assertEquals(
+                    TestMtpManager.CREATED_DOCUMENT_HANDLE,
+                    mDatabase.createIdentifier("3").mObjectHandle);
+        }
+    }
+
+    public void testFlush_failure() throws Exception {
+        mManager.setFailsSendObject(true);
+        try (final MtpFileWriter writer =
+                new MtpFileWriter(getContext(), "3", MEMORY_THRESHOLD)) {
+            assertEquals(5, writer.write(0, 5, "Hello".getBytes()));
+            try {
+                writer.flush(mManager, mDatabase, CAPABILITIES);
+                fail();
+            } catch (IOException error) {}
+            // The document still points to the original object.
+            assertEquals(1, mDatabase.createIdentifier("3").mObjectHandle);
+            assertEquals("note.txt", mManager.getObjectInfo(0, 1).getName());
+
+            // The content remains staged and is uploaded by the next flush.
+            mManager.setFailsSendObject(false);
+            assertTrue(writer.flush(mManager, mDatabase, CAPABILITIES));
+            assertTrue(Arrays.equals(
+                    "Hello".getBytes(),
+                    mManager.getImportFileBytes(0, TestMtpManager.CREATED_DOCUMENT_HANDLE)));
+        }
+    }
+
+    private static void assertRead(MtpFileWriter writer, long offset, String expected)
+            throws Exception {
+        final byte[] bytes = new byte[expected.length()];
+        assertEquals(bytes.length, writer.read(offset, bytes.length, bytes));
+        assertEquals(expected, new String(bytes));
+    }
+}
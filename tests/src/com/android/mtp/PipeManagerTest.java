@@ -20,6 +20,7 @@ import android.os.ParcelFileDescriptor;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -78,6 +79,70 @@ public class PipeManagerTest extends AndroidTestCase {
         assertDescriptorError(descriptor);
     }
 
+    public void testSpoolDocument_reuse() throws Exception {
+        mtpManager.setImportFileBytes(0, 1, HELLO_BYTES);
+        final DocumentSpool spool = spoolDocument(mPipeManager, 1);
+        spool.release();
+        final DocumentSpool reused = spoolDocument(mPipeManager, 1);
+        reused.release();
+        assertSame(spool, reused);
+    }
+
+    public void testSpoolDocument_budget() throws Exception {
+        final PipeManager pipeManager = new PipeManager(
+                mDatabase, Executors.newSingleThreadExecutor(), HELLO_BYTES.length * 2 - 1);
+        try {
+            mtpManager.setImportFileBytes(0, 1, HELLO_BYTES);
+            mtpManager.setImportFileBytes(0, 2, HELLO_BYTES);
+            final DocumentSpool spool = spoolDocument(pipeManager, 1);
+            spool.release();
+            // The spool of object 1 is evicted since two spools exceed the budget.
+            spoolDocument(pipeManager, 2).release();
+            final DocumentSpool reloaded = spoolDocument(pipeManager, 1);
+            reloaded.release();
+            assertNotSame(spool, reloaded);
+        } finally {
+            assertTrue(pipeManager.close());
+        }
+    }
+
+    public void testSpoolDocument_overBudget() throws Exception {
+        final PipeManager pipeManager = new PipeManager(
+                mDatabase, Executors.newSingleThreadExecutor(), HELLO_BYTES.length - 1);
+        try {
+            mtpManager.setImportFileBytes(0, 1, HELLO_BYTES);
+            final DocumentSpool spool = spoolDocument(pipeManager, 1);
+            spool.release();
+            final DocumentSpool reloaded = spoolDocument(pipeManager, 1);
+            reloaded.release();
+            assertNotSame(spool, reloaded);
+        } finally {
+            assertTrue(pipeManager.close());
+        }
+    }
+
+    public void testSpoolDocument_noSpace() throws Exception {
+        final File directory = new File(getContext().getCacheDir(), "spool_test");
+        assertNull(mPipeManager.spoolDocument(
+                mtpManager,
+                new Identifier(0, 0, 1, null, MtpDatabaseConstants.DOCUMENT_TYPE_OBJECT),
+                Long.MAX_VALUE,
+                0,
+                directory));
+    }
+
+    private DocumentSpool spoolDocument(PipeManager pipeManager, int objectHandle)
+            throws IOException {
+        final DocumentSpool spool = pipeManager.spoolDocument(
+                mtpManager,
+                new Identifier(0, 0, objectHandle, null, MtpDatabaseConstants.DOCUMENT_TYPE_OBJECT),
+                HELLO_BYTES.length,
+                0,
+                new File(getContext().getCacheDir(), "spool_test"));
+        assertNotNull(spool);
+        return spool;
+    }
+
     private void assertDescriptor(ParcelFileDescriptor descriptor, byte[] expectedBytes)
             throws IOException, InterruptedException {
         mExecutor.shutdown();
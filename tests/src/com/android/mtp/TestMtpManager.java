@@ -21,11 +21,13 @@ import android.mtp.MtpObjectInfo;
 import android.os.ParcelFileDescriptor;
 import android.util.SparseArray;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import junit.framework.Assert;
 
 public class TestMtpManager extends MtpManager {
@@ -41,6 +43,9 @@ public class TestMtpManager extends MtpManager {
     private final Map<String, byte[]> mThumbnailBytes = new HashMap<>();
     private final Map<String, byte[]> mImportFileBytes = new HashMap<>();
     private final Map<String, Long> mObjectSizeLongs = new HashMap<>();
+    private final AtomicInteger mObjectInfoRequestCount = new AtomicInteger();
+    private boolean mRejectsDuplicateNames;
+    private boolean mFailsSendObject;
 
     TestMtpManager(Context context) {
         super(context);
@@ -58,6 +63,10 @@ public class TestMtpManager extends MtpManager {
         mObjectInfos.put(pack(deviceId, objectInfo.getObjectHandle()), objectInfo);
     }
 
+    int getObjectInfoRequestCount() {
+        return mObjectInfoRequestCount.get();
+    }
+
     void setImportFileBytes(int deviceId, int objectHandle, byte[] bytes) {
         mImportFileBytes.put(pack(deviceId, objectHandle), bytes);
     }
@@ -70,6 +79,20 @@ public class TestMtpManager extends MtpManager {
         mThumbnailBytes.put(pack(deviceId, objectHandle), bytes);
     }
 
+    /**
+     * Makes createDocument fail at SendObjectInfo if the parent has an object with the same name.
+     */
+    void setRejectsDuplicateNames(boolean value) {
+        mRejectsDuplicateNames = value;
+    }
+
+    /**
+     * Makes createDocument fail after SendObjectInfo succeeds.
+     */
+    void setFailsSendObject(boolean value) {
+        mFailsSendObject = value;
+    }
+
     void setObjectSizeLong(int deviceId, int objectHandle, int format, long value) {
         mObjectSizeLongs.put(pack(deviceId, objectHandle, format), value);
     }
@@ -117,6 +140,7 @@ public class TestMtpManager extends MtpManager {
 
     @Override
     MtpObjectInfo getObjectInfo(int deviceId, int objectHandle) throws IOException {
+        mObjectInfoRequestCount.incrementAndGet();
         final String key = pack(deviceId, objectHandle);
         if (mObjectInfos.containsKey(key)) {
             return mObjectInfos.get(key);
@@ -135,6 +159,27 @@ public class TestMtpManager extends MtpManager {
         }
     }
 
+    @Override
+    int[] getObjectHandles(int deviceId, int storageId, int format, int parentObjectHandle)
+            throws IOException {
+        final int[] handles = getObjectHandles(deviceId, storageId, parentObjectHandle);
+        if (format == 0) {
+            return handles;
+        }
+        final ArrayList<Integer> results = new ArrayList<>();
+        for (final int handle : handles) {
+            final MtpObjectInfo info = mObjectInfos.get(pack(deviceId, handle));
+            if (info != null && info.getFormat() == format) {
+                results.add(handle);
+            }
+        }
+        final int[] resultArray = new int[results.size()];
+        for (int i = 0; i < resultArray.length; i++) {
+            resultArray[i] = results.get(i);
+        }
+        return resultArray;
+    }
+
     @Override
     void importFile(int deviceId, int objectHandle, ParcelFileDescriptor target)
             throws IOException {
@@ -155,26 +200,43 @@ public class TestMtpManager extends MtpManager {
         Assert.assertNotSame(0, objectInfo.getStorageId());
         Assert.assertNotSame(-1, objectInfo.getStorageId());
         Assert.assertNotSame(0, objectInfo.getParent());
-        final String key = pack(deviceId, CREATED_DOCUMENT_HANDLE);
-        if (mObjectInfos.containsKey(key)) {
-            throw new IOException();
+        if (mRejectsDuplicateNames) {
+            for (final Map.Entry<String, MtpObjectInfo> entry : mObjectInfos.entrySet()) {
+                final MtpObjectInfo info = entry.getValue();
+                if (entry.getKey().equals(pack(deviceId, info.getObjectHandle())) &&
+                        info.getStorageId() == objectInfo.getStorageId() &&
+                        info.getParent() == objectInfo.getParent() &&
+                        info.getName().equals(objectInfo.getName())) {
+                    throw new SendObjectInfoFailure();
+                }
+            }
+        }
+        if (mFailsSendObject) {
+            throw new IOException("Failed to send contents of a document");
+        }
+        int handle = CREATED_DOCUMENT_HANDLE;
+        while (mObjectInfos.containsKey(pack(deviceId, handle))) {
+            handle++;
         }
         final MtpObjectInfo newInfo = new MtpObjectInfo.Builder(objectInfo).
-                setObjectHandle(CREATED_DOCUMENT_HANDLE).build();
-        mObjectInfos.put(key, newInfo);
+                setObjectHandle(handle).build();
         if (objectInfo.getFormat() != 0x3001) {
-            try (final ParcelFileDescriptor.AutoCloseInputStream inputStream =
-                    new ParcelFileDescriptor.AutoCloseInputStream(source)) {
-                final byte[] buffer = new byte[objectInfo.getCompressedSize()];
-                if (inputStream.read(buffer, 0, objectInfo.getCompressedSize()) !=
-                        objectInfo.getCompressedSize()) {
+            // MtpDevice#sendObject does not close the source, so the stream is not closed.
+            final FileInputStream inputStream = new FileInputStream(source.getFileDescriptor());
+            final byte[] buffer = new byte[objectInfo.getCompressedSize()];
+            int read = 0;
+            while (read < buffer.length) {
+                final int result = inputStream.read(buffer, read, buffer.length - read);
+                if (result < 0) {
                     throw new IOException();
                 }
-
-                mImportFileBytes.put(pack(deviceId, CREATED_DOCUMENT_HANDLE), buffer);
+                read += result;
             }
+
+            mImportFileBytes.put(pack(deviceId, handle), buffer);
         }
-        return CREATED_DOCUMENT_HANDLE;
+        mObjectInfos.put(pack(deviceId, handle), newInfo);
+        return handle;
     }
 
     @Override
@@ -197,6 +259,20 @@ public class TestMtpManager extends MtpManager {
         }
     }
 
+    @Override
+    boolean[] deleteDocuments(int deviceId, int[] objectHandles) {
+        final boolean[] results = new boolean[objectHandles.length];
+        for (int i = 0; i < objectHandles.length; i++) {
+            try {
+                deleteDocument(deviceId, objectHandles[i]);
+                results[i] = true;
+            } catch (IOException error) {
+                results[i] = false;
+            }
+        }
+        return results;
+    }
+
     @Override
     int getParent(int deviceId, int objectHandle) throws IOException {
         final String key = pack(deviceId, objectHandle);
@@ -42,6 +42,8 @@ final class TestUtil {
             MtpConstants.OPERATION_GET_OBJECT_PROP_VALUE
     };
 
+    static final int CAPABILITIES = MtpDeviceRecord.getCapabilities(OPERATIONS_SUPPORTED);
+
     /**
      * Requests permission for a MTP device and returns the first MTP device that has at least one
      * storage.
@@ -76,7 +78,7 @@ final class TestUtil {
 
     static void addTestStorage(MtpDatabase database, String parentId) throws FileNotFoundException {
         database.getMapper().startAddingDocuments(parentId);
-        database.getMapper().putStorageDocuments(parentId, OPERATIONS_SUPPORTED, new MtpRoot[] {
+        database.getMapper().putStorageDocuments(parentId, CAPABILITIES, new MtpRoot[] {
                 new MtpRoot(0, 100, "Storage", 1024, 1024, ""),
         });
         database.getMapper().stopAddingDocuments(parentId);